@@ -0,0 +1,280 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// Benchmark suite for the balancer that runs with plain javac/java: server selection per policy, pool size and
+// thread count, JOIN/REQUEST parsing on both the blocking and the NIO path, and loopback end-to-end requests
+// against an in-process LoadBalancer and servers. Every case runs warmup iterations first, then timed iterations,
+// and prints mean throughput with its spread across iterations, so runs before and after a change are comparable.
+public class Benchmarks {
+
+    private static final int BASE_PORT = 7900;
+    private static final int[] POOL_SIZES = {4, 64, 1024};
+    private static volatile long sink; // results are folded in here so the JIT cannot drop the measured work
+
+    private final int warmups;
+    private final int iterations;
+    private final long iterationMillis;
+
+    Benchmarks(int warmups, int iterations, long iterationMillis) {
+        this.warmups = warmups;
+        this.iterations = iterations;
+        this.iterationMillis = iterationMillis;
+    }
+
+    // One benchmarked operation, run repeatedly by each thread; the return value is consumed to keep the work alive
+    interface Op {
+
+        long run(int thread) throws Exception;
+    }
+
+    // Claims and frees a server through the balancer for every policy, pool size and level of contention
+    void selection() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 4 ? new int[]{1, 4, cores} : new int[]{1, 4}; // 4 threads contend even on small machines
+        for (Policy policy : Policy.values()) {
+            for (int size : POOL_SIZES) {
+                LoadBalancer lb = new LoadBalancer(0);
+                lb.setPolicy(Strategy.STATIC, policy);
+                lb.setQueue(0, 0); // measure selection alone, never park in the wait queue
+                for (int i = 0; i < size; i++) {
+                    lb.register(new JoinRequest(10_000 + i, Strategy.STATIC, 1), null);
+                }
+                for (int threads : threadCounts) {
+                    measure("select+free " + policy.name().toLowerCase() + " servers=" + size, threads, null, t -> {
+                        ServerInfo s = lb.selectServer(Strategy.STATIC);
+                        if (s == null) {
+                            return 0; // every server claimed by the other threads
+                        }
+                        lb.markFree(s);
+                        return s.port;
+                    });
+                }
+            }
+        }
+    }
+
+    // Parses registration and lookup lines the way the blocking handler and the NIO event loop do, and a binary lookup frame
+    void parsing() {
+        String join = "JOIN 7001 dynamic 4";
+        String request = "REQUEST compute";
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        direct.put(request.getBytes(StandardCharsets.US_ASCII)).flip();
+        int len = direct.limit();
+        measure("parse JOIN (text)", 1, null, t -> {
+            JoinRequest j = JoinRequest.parse(join);
+            return j.port + j.capacity;
+        });
+        measure("parse REQUEST (text)", 1, null, t -> LoadBalancer.requestStrategy(request).ordinal());
+        measure("parse REQUEST (nio bytes)", 1, null, t -> NioEventLoop.requestStrategy(direct, 0, len).ordinal());
+        ByteBuffer frame = ByteBuffer.allocateDirect(64);
+        Client.encodeLookup(frame, 1, 3, null);
+        int frameEnd = frame.position();
+        measure("decode REQUEST (binary frame)", 1, null, t -> {
+            int size = BinaryCodec.frameSize(frame, 0, frameEnd);
+            frame.limit(size).position(2);
+            byte opcode = frame.get();
+            long id = BinaryCodec.getVarint(frame);
+            return opcode + id + Strategy.of(frame.get()).ordinal();
+        });
+    }
+
+    // Full requests over loopback: one-shot connections through Client, and keep-alive multiplexed ClientSessions
+    void endToEnd(int servers, int threads) throws Exception {
+        Path dir = Files.createTempDirectory("lb-bench");
+        for (int i = 0; i < 20; i++) {
+            Files.write(dir.resolve("file" + i + ".txt"), ("content " + i + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+        String listing = dir.toString();
+        int[] eventLoops = {0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)};
+        for (int m = 0; m < eventLoops.length; m++) {
+            int lbPort = BASE_PORT + m * 100;
+            String mode = eventLoops[m] == 0 ? "blocking" : "nio";
+            LoadBalancer lb = new LoadBalancer(lbPort, eventLoops[m]);
+            List<Server> started = startCluster(lb, lbPort, servers, threads);
+            try {
+                LatencyHistogram oneShot = new LatencyHistogram();
+                measure("e2e one-shot listing lb=" + mode + " servers=" + servers, threads, oneShot,
+                        t -> new Client(1, listing, lbPort).runRequest().length());
+                System.out.println("    latency us " + oneShot.summary());
+
+                ClientSession[] sessions = new ClientSession[threads];
+                for (int t = 0; t < threads; t++) {
+                    sessions[t] = new ClientSession(lbPort);
+                }
+                LatencyHistogram keepAlive = new LatencyHistogram();
+                measure("e2e keep-alive listing lb=" + mode + " servers=" + servers, threads, keepAlive,
+                        t -> sessions[t].request(1, listing).length());
+                System.out.println("    latency us " + keepAlive.summary());
+                for (ClientSession s : sessions) {
+                    s.close();
+                }
+            } finally {
+                for (Server s : started) {
+                    s.stop();
+                }
+                lb.stop();
+                Thread.sleep(300);
+            }
+        }
+    }
+
+    // Starts the balancer and static servers with enough slots for every benchmark thread
+    private static List<Server> startCluster(LoadBalancer lb, int lbPort, int servers, int threads) throws InterruptedException {
+        startDaemon(() -> {
+            try {
+                lb.start();
+            } catch (IOException ignored) {
+                // stop() closes the listening socket
+            }
+        });
+        Thread.sleep(300);
+        List<Server> started = new ArrayList<>();
+        for (int i = 0; i < servers; i++) {
+            Server server = new Server(lbPort + 1 + i, "static", lbPort);
+            server.setCapacity(threads);
+            started.add(server);
+            startDaemon(() -> {
+                try {
+                    server.start();
+                } catch (IOException e) {
+                    Log.error("Benchmark server failed", e);
+                }
+            });
+        }
+        Thread.sleep(500);
+        return started;
+    }
+
+    private static void startDaemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Runs op on the given number of threads for the warmup and measured iterations and prints one result line
+    private void measure(String name, int threads, LatencyHistogram latencies, Op op) {
+        double[] rates = new double[iterations];
+        try {
+            for (int i = 0; i < warmups; i++) {
+                iteration(threads, op, null);
+            }
+            for (int i = 0; i < iterations; i++) {
+                rates[i] = iteration(threads, op, latencies);
+            }
+        } catch (Exception e) {
+            System.out.println(String.format("%-52s failed: %s", name, e));
+            return;
+        }
+        double mean = 0;
+        for (double r : rates) {
+            mean += r / iterations;
+        }
+        double variance = 0;
+        for (double r : rates) {
+            variance += (r - mean) * (r - mean) / Math.max(1, iterations - 1);
+        }
+        System.out.println(String.format("%-52s threads=%-3d %14.0f ops/s +- %5.1f%%  %12.1f ns/op",
+                name, threads, mean, mean == 0 ? 0 : 100 * Math.sqrt(variance) / mean, mean == 0 ? 0 : threads * 1e9 / mean));
+    }
+
+    // One timed iteration; returns operations per second across all threads
+    private double iteration(int threads, Op op, LatencyHistogram latencies) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        LongAdder ops = new LongAdder();
+        Exception[] failure = new Exception[1];
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                long n = 0;
+                long acc = 0;
+                try {
+                    barrier.await();
+                    while (running.get()) {
+                        long start = latencies != null ? System.nanoTime() : 0;
+                        acc += op.run(id);
+                        if (latencies != null) {
+                            latencies.recordMicrosSince(start);
+                        }
+                        n++;
+                    }
+                } catch (Exception e) {
+                    synchronized (failure) {
+                        failure[0] = e;
+                    }
+                }
+                ops.add(n);
+                sink += acc;
+            }, "bench-" + t);
+            workers[t].start();
+        }
+        barrier.await();
+        long start = System.nanoTime();
+        Thread.sleep(iterationMillis);
+        running.set(false);
+        for (Thread w : workers) {
+            w.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (failure) {
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        return ops.sum() * 1e9 / elapsed;
+    }
+
+    // Usage: Benchmarks [select] [parse] [e2e [servers [threads]]] [--quick]; with no suite named, all of them run
+    public static void main(String[] args) throws Exception {
+        boolean quick = false;
+        boolean select = false;
+        boolean parse = false;
+        boolean e2e = false;
+        int servers = 2;
+        int threads = 8;
+        for (int i = 0; i < args.length; i++) {
+            if ("--quick".equals(args[i])) {
+                quick = true;
+            } else if ("select".equalsIgnoreCase(args[i])) {
+                select = true;
+            } else if ("parse".equalsIgnoreCase(args[i])) {
+                parse = true;
+            } else if ("e2e".equalsIgnoreCase(args[i])) {
+                e2e = true;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                    servers = Integer.parseInt(args[++i]);
+                    if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                        threads = Integer.parseInt(args[++i]);
+                    }
+                }
+            }
+        }
+        if (!select && !parse && !e2e) {
+            select = parse = e2e = true;
+        }
+        Log.setLevel(Log.Level.WARN); // keep registration and per-request messages out of the measurements
+        Benchmarks b = quick ? new Benchmarks(1, 3, 200) : new Benchmarks(3, 5, 1000);
+        System.out.println("java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores");
+        if (select) {
+            b.selection();
+        }
+        if (parse) {
+            b.parsing();
+        }
+        if (e2e) {
+            b.endToEnd(servers, threads);
+        }
+        System.out.println("sink " + (sink & 1)); // never optimized away
+    }
+}
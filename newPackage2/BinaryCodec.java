@@ -0,0 +1,187 @@
+package networkProject.newPackage2;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary framing used between Client, Server and LoadBalancer. A connection opts in by sending MAGIC as
+// its first byte (text lines always start with ASCII, so the two protocols are told apart by that byte alone);
+// after that every message is a frame: [u16 length][u8 opcode][varint request id][fields], length counting
+// everything after itself. Integer fields are unsigned LEB128 varints and strings are a varint length plus UTF-8.
+// Encoding and decoding work in place on caller-owned ByteBuffers and allocate nothing except decoded Strings.
+final class BinaryCodec {
+
+    static final byte MAGIC = (byte) 0xB1;
+    static final int MAX_FRAME = 0xFFFF;
+
+    // Load balancer lookups: REQUEST(strategy) answered by ASSIGNED(port) or NO_SERVER, matched by request id
+    static final byte REQUEST = 1;
+    static final byte ASSIGNED = 2;
+    static final byte NO_SERVER = 3;
+    // Server control connection: JOIN(port, strategy, capacity) answered by OK, then status messages
+    static final byte JOIN = 4;
+    static final byte OK = 5;
+    static final byte FREE = 6;
+    static final byte REJECTED = 7;
+    static final byte LOAD = 8; // active, queued, cpu percent, latency EWMA micros
+    static final byte GOODBYE = 9;
+    // Client to server request header: CALL(choice, type); the response that follows is unchanged
+    static final byte CALL = 10;
+    // Health checks: PING from the load balancer answered by PONG on the control connection, and FAILED(port) from a
+    // client on its lookup connection when the assigned server could not be reached
+    static final byte PING = 11;
+    static final byte PONG = 12;
+    static final byte FAILED = 13;
+    // Leases: LEASE(strategy, slots, ttl millis) answered by LEASED(lease id, ttl millis, count, count x (port, slots))
+    // or NO_SERVER; RETURN(lease id, count, count x (port, unused slots)) ends a lease and has no reply. INVALIDATE(port)
+    // is pushed to lease holders when membership changes, port 0 meaning a server joined or came back
+    static final byte LEASE = 14;
+    static final byte LEASED = 15;
+    static final byte RETURN = 16;
+    static final byte INVALIDATE = 17;
+
+    static final byte[] PING_FRAME = frame(PING);
+
+    private BinaryCodec() {
+    }
+
+    // A complete field-less frame with request id 0, for messages sent often enough to keep pre-encoded
+    static byte[] frame(byte opcode) {
+        ByteBuffer b = ByteBuffer.allocate(8);
+        end(b, begin(b, opcode, 0));
+        byte[] bytes = new byte[b.position()];
+        b.flip().get(bytes);
+        return bytes;
+    }
+
+    // Writes the frame header and returns the frame's start position, to be passed to end() once the fields are in
+    static int begin(ByteBuffer b, byte opcode, long id) {
+        int start = b.position();
+        b.putShort((short) 0);
+        b.put(opcode);
+        putVarint(b, id);
+        return start;
+    }
+
+    // Fills in the length of the frame begun at start
+    static void end(ByteBuffer b, int start) {
+        int length = b.position() - start - 2;
+        if (length > MAX_FRAME) {
+            throw new IllegalArgumentException("Frame too large: " + length);
+        }
+        b.putShort(start, (short) length);
+    }
+
+    static void putVarint(ByteBuffer b, long v) {
+        while ((v & ~0x7FL) != 0) {
+            b.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        b.put((byte) v);
+    }
+
+    static long getVarint(ByteBuffer b) {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte x = b.get();
+            v |= (long) (x & 0x7F) << shift;
+            if (x >= 0) {
+                return v;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int getInt(ByteBuffer b) {
+        long v = getVarint(b);
+        if (v > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Field out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    // Writes s as a varint byte length and UTF-8, encoding by hand so no byte array is created
+    static void putString(ByteBuffer b, String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                len++;
+            } else if (c < 0x800) {
+                len += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                len += 4;
+                i++;
+            } else {
+                len += 3;
+            }
+        }
+        putVarint(b, len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                b.put((byte) c);
+            } else if (c < 0x800) {
+                b.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                b.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                        .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+            } else {
+                b.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+            }
+        }
+    }
+
+    static String getString(ByteBuffer b) {
+        int len = getInt(b);
+        if (len > b.remaining()) {
+            throw new IllegalArgumentException("String longer than its frame");
+        }
+        String s;
+        if (b.hasArray()) {
+            s = new String(b.array(), b.arrayOffset() + b.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] tmp = new byte[len];
+            b.duplicate().get(tmp);
+            s = new String(tmp, StandardCharsets.UTF_8);
+        }
+        b.position(b.position() + len);
+        return s;
+    }
+
+    // Size of the complete frame at index from, header included, or -1 while fewer than that many bytes are buffered
+    static int frameSize(ByteBuffer b, int from, int to) {
+        if (to - from < 2) {
+            return -1;
+        }
+        int size = 2 + (b.getShort(from) & 0xFFFF);
+        return to - from >= size ? size : -1;
+    }
+
+    // Reads one frame from a blocking stream into buf, positioned at the opcode; grows buf if needed, null at end of stream
+    static ByteBuffer readFrame(DataInputStream in, ByteBuffer buf) throws IOException {
+        int length;
+        try {
+            length = in.readUnsignedShort();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (buf.capacity() < length) {
+            buf = ByteBuffer.allocate(length);
+        }
+        buf.clear().limit(length);
+        in.readFully(buf.array(), buf.arrayOffset(), length);
+        return buf;
+    }
+
+    // Writes the frames encoded in a heap buffer (in fill mode) to a blocking stream and clears the buffer
+    static void write(OutputStream out, ByteBuffer b) throws IOException {
+        out.write(b.array(), b.arrayOffset(), b.position());
+        out.flush();
+        b.clear();
+    }
+}
@@ -0,0 +1,45 @@
+package networkProject.newPackage2;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A shared free list of fixed-size direct buffers, so hot I/O paths do not allocate per connection
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    // Returns a cleared buffer, allocating a new one only when the pool is empty
+    ByteBuffer acquire() {
+        ByteBuffer b = free.poll();
+        if (b == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return b;
+    }
+
+    // Hands a buffer back; buffers beyond the pool limit are left to the garbage collector
+    void release(ByteBuffer b) {
+        if (b == null || b.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.add(b.clear());
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,83 @@
+package networkProject.newPackage2;
+
+// Per-server circuit breaker. A CLOSED server takes traffic. Consecutive connect failures reported by clients, or a
+// suspected crash, OPEN it for a backoff that doubles every time it re-opens. When the backoff has passed it goes
+// HALF_OPEN for one health probe, which either closes it again or re-opens it.
+class CircuitBreaker {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private volatile State state = State.CLOSED;
+    private int failures; // consecutive, guarded by this
+    private long openedAt;
+    private long backoffMillis;
+
+    CircuitBreaker(int failureThreshold, long baseBackoffMillis, long maxBackoffMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = Math.max(baseBackoffMillis, maxBackoffMillis);
+        this.backoffMillis = baseBackoffMillis;
+    }
+
+    // Read on every selection, so it is a single volatile load
+    boolean allowsTraffic() {
+        return state == State.CLOSED;
+    }
+
+    State state() {
+        return state;
+    }
+
+    // Counts a failed connection; returns true if this one opened the breaker
+    synchronized boolean recordFailure(long nowMillis) {
+        if (++failures < failureThreshold || state != State.CLOSED) {
+            return false;
+        }
+        open(nowMillis);
+        return true;
+    }
+
+    synchronized void recordSuccess() {
+        failures = 0;
+    }
+
+    // Opens the breaker regardless of the failure count, e.g. when heartbeats stop; returns true if it was closed
+    synchronized boolean trip(long nowMillis) {
+        if (state != State.CLOSED) {
+            return false;
+        }
+        open(nowMillis);
+        return true;
+    }
+
+    // Moves an OPEN breaker whose backoff has passed to HALF_OPEN; true means the caller should probe now
+    synchronized boolean tryHalfOpen(long nowMillis) {
+        if (state != State.OPEN || nowMillis - openedAt < backoffMillis) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    synchronized void probeSucceeded() {
+        failures = 0;
+        backoffMillis = baseBackoffMillis;
+        state = State.CLOSED;
+    }
+
+    synchronized void probeFailed(long nowMillis) {
+        backoffMillis = Math.min(2 * backoffMillis, maxBackoffMillis);
+        state = State.OPEN;
+        openedAt = nowMillis;
+    }
+
+    private void open(long nowMillis) {
+        state = State.OPEN;
+        openedAt = nowMillis;
+    }
+}
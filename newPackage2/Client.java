@@ -2,14 +2,46 @@ package networkProject.newPackage2;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Client {
 
     private static final int LB_PORT = 6789;
+    static final Metrics metrics = new Metrics("client"); // shared by all clients in this JVM
+    private static final LatencyHistogram lookupMicros = metrics.histogram("lookup_us");
+    private static final LatencyHistogram[] requestMicros = new LatencyHistogram[Server.BINARY_FILE + 1];
+    private static final LongAdder bytesReceived = metrics.counter("bytes_received");
+    private static final LongAdder failures = metrics.counter("failures");
+    private static final LongAdder retries = metrics.counter("retries");
+    static final int MAX_ATTEMPTS = 3; // servers tried per request before giving up
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final Map<Integer, RoutingTable> routingTables = new ConcurrentHashMap<>(); // leased slots per LB port
+    private static final AtomicInteger nextBalancer = new AtomicInteger(); // rotates lookups over a cluster's balancers
+    static final int MAX_ROUTING_KEY = 384; // UTF-8 bytes; keeps a lookup within the balancer's 512-byte NIO read buffer
+
+    static {
+        for (int c = 0; c < requestMicros.length; c++) {
+            requestMicros[c] = metrics.histogram((c == 0 ? "invalid" : "choice" + c) + ".request_us");
+        }
+    }
     private int choice;
     private String type;
     private int lbPort;
+    private int[] lbPorts; // balancers of a cluster; null looks up at lbPort only
+    private int proxyPort = 0; // when set, the request goes through the load balancer's proxy port
+    private File downloadDir = new File("downloads");
+    private boolean binaryProtocol = true; // false sends text lines, which are easier to read on the wire
+    private int leaseSlots = 0; // 0 looks up every request; otherwise requests spend slots leased this many at a time
+    private long leaseMillis = 1000;
 
     // Constructs a client with the given request type and value, using the default LB port
     public Client(int choice, String type) {
@@ -23,84 +55,387 @@ public class Client {
         this.lbPort = lbPort;
     }
 
+    // Spreads lookups over the balancers of a cluster: each request starts at the next balancer in turn, and one that
+    // refuses the connection is skipped, so a balancer going down costs no failed requests
+    public void setLoadBalancers(int... ports) {
+        this.lbPorts = ports;
+    }
+
+    // Sends requests through the load balancer's proxy port instead of connecting to servers directly
+    public void setProxyPort(int proxyPort) {
+        this.proxyPort = proxyPort;
+    }
+
+    // Sets where binary file transfers are saved
+    public void setDownloadDir(File downloadDir) {
+        this.downloadDir = downloadDir;
+    }
+
+    // Chooses binary frames (the default) or the text line protocol for lookups and request headers
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // Spends slots leased from the load balancer, slots at a time for up to ttlMillis, instead of one lookup per
+    // request; 0 slots turns leasing off. The leases live in a routing table shared by every leasing client in this
+    // JVM that talks to the same balancer, configured by whichever of them uses it first.
+    public void setLease(int slots, long ttlMillis) {
+        this.leaseSlots = slots;
+        this.leaseMillis = ttlMillis;
+    }
+
+    // Returns the unused slots of every leased routing table to their balancers
+    public static void releaseLeases() throws IOException {
+        for (RoutingTable table : routingTables.values()) {
+            table.close();
+        }
+    }
+
+    // Lookup and end-to-end request latency histograms, bytes received and failures of every client in this JVM
+    public static String stats() {
+        return metrics.render();
+    }
+
     // Sends the request to the server via the load balancer and returns the response
     public String runRequest() throws IOException {
-        StringBuilder response = new StringBuilder();
-        int port = getPort(choice);
-        try (Socket s = new Socket("localhost", port)) {
+        long start = System.nanoTime();
+        try {
+            String result = send();
+            recordRequest(choice, start);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            failures.increment();
+            throw e;
+        }
+    }
+
+    // Records a completed request's end-to-end latency under its choice; shared with ClientSession's keep-alive path
+    static void recordRequest(int choice, long startNanos) {
+        requestMicros[choice > 0 && choice < requestMicros.length ? choice : 0].recordMicrosSince(startNanos);
+    }
+
+    static void recordFailure() {
+        failures.increment();
+    }
+
+    private String send() throws IOException {
+        boolean first = true; // lines are logged and dropped, so a huge listing costs no client memory
+        try (SocketChannel ch = connect()) {
+            if (choice == Server.BINARY_FILE) {
+                File saved = downloadFile(ch);
+                return getChoiceName(choice) + " request completed successfully, saved to " + saved.getPath() + ".";
+            }
+            Socket s = ch.socket();
             DataOutputStream out = new DataOutputStream(s.getOutputStream());
             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
-            out.writeBytes(choice + "\n");
-            out.writeBytes(type + "\n");
+            if (binaryProtocol) {
+                ByteBuffer header = requestHeader();
+                out.write(header.array(), 0, header.limit());
+            } else {
+                out.writeBytes(choice + "\n");
+                out.writeBytes(type + "\n");
+            }
             out.flush();
             String line;
             while ((line = in.readLine()) != null) {
-                response.append(line).append("\n");
-                System.out.println("Received: " + line);
+                if (proxyPort > 0 && first && "NO_SERVER".equals(line)) {
+                    throw new IOException("No server available");
+                }
+                if (first && line.startsWith("REJECTED")) {
+                    throw new IOException(line); // the server's admission control turned the request away
+                }
+                first = false;
+                bytesReceived.add(line.length() + 1);
+                Log.info("Received: {}", preview(line));
             }
         }
         return getChoiceName(choice) + " request completed successfully.";
     }
 
-    // Requests a server port from the load balancer based on the request type
-    private int getPort(int choice) throws IOException {
-        try (Socket lb = new Socket("localhost", lbPort)) {
-            DataOutputStream out = new DataOutputStream(lb.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(lb.getInputStream()));
-            String requestType;
-            switch (choice) {
-                case 1:
-                    requestType = "file";
-                    break;
-                case 2:
-                    requestType = "file";
-                    break;
-                case 3:
-                    requestType = "compute";
-                    break;
-                case 4:
-                    requestType = "stream";
+    // Fetches a file with the binary protocol ("OK <length>" + raw bytes) and streams it straight to disk
+    private File downloadFile(SocketChannel ch) throws IOException {
+        ByteBuffer request = binaryProtocol ? requestHeader() : ByteBuffer.wrap((choice + "\n" + type + "\n").getBytes(StandardCharsets.UTF_8));
+        while (request.hasRemaining()) {
+            ch.write(request);
+        }
+        ByteBuffer header = ByteBuffer.allocate(256);
+        int nl = -1;
+        while (nl < 0) {
+            if (!header.hasRemaining() || ch.read(header) < 0) {
+                throw new IOException("Malformed file transfer header");
+            }
+            for (int i = 0; i < header.position(); i++) {
+                if (header.get(i) == '\n') {
+                    nl = i;
                     break;
-                default:
-                    requestType = "file";
+                }
             }
-            out.writeBytes("REQUEST " + requestType + "\n");
-            out.flush();
-            String p = in.readLine();
-            if ("NO_SERVER".equals(p)) {
-                throw new IOException("No server available");
+        }
+        String status = new String(header.array(), 0, nl, StandardCharsets.US_ASCII);
+        if ("NO_SERVER".equals(status)) {
+            throw new IOException("No server available");
+        }
+        if (!status.startsWith("OK ")) {
+            throw new IOException(status.startsWith("ERR ") ? status.substring(4) : status);
+        }
+        long size = Long.parseLong(status.substring(3).trim());
+        downloadDir.mkdirs();
+        File target = new File(downloadDir, new File(type).getName());
+        try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            header.flip().position(nl + 1); // bytes that arrived together with the header
+            long pos = out.write(header);
+            while (pos < size) {
+                long n = out.transferFrom(ch, pos, size - pos);
+                if (n <= 0) {
+                    throw new IOException("Connection closed after " + pos + " of " + size + " bytes");
+                }
+                pos += n;
             }
-            return Integer.parseInt(p);
         }
+        bytesReceived.add(size);
+        Log.info("Received {} bytes into {}", size, target.getPath());
+        return target;
     }
 
-    // Runs multiple clients in parallel for testing
-    public static void testHundredClients(int numClients) {
-        Thread[] threads = new Thread[numClients];
-        for (int i = 0; i < numClients; i++) {
-            final int clientNum = i % 4 + 1;
-            final String type = (clientNum == 1) ? "testDir"
-                    : (clientNum == 2) ? "testFile.txt"
-                            : (clientNum == 3) ? "5"
-                                    : "10";
-            threads[i] = new Thread(() -> {
+    // Encodes the request as MAGIC followed by a CALL frame; the server's response is the same as in the text protocol
+    private ByteBuffer requestHeader() {
+        ByteBuffer b = ByteBuffer.allocate(16 + 4 * type.length());
+        b.put(BinaryCodec.MAGIC);
+        int start = BinaryCodec.begin(b, BinaryCodec.CALL, 0);
+        BinaryCodec.putVarint(b, choice);
+        BinaryCodec.putString(b, type);
+        BinaryCodec.end(b, start);
+        return b.flip();
+    }
+
+    // Sends the request over a session's long-lived connections instead of opening new sockets
+    public String runRequest(ClientSession session) throws IOException {
+        String response = session.request(choice, type);
+        for (String line : response.split("\n", -1)) {
+            Log.info("Received: {}", preview(line));
+        }
+        return getChoiceName(choice) + " request completed successfully.";
+    }
+
+    // Looks up a server and connects to it. A server that cannot be reached is reported to the load balancer with
+    // FAILED, which frees the slot the lookup claimed and counts against the server's circuit breaker, and the
+    // lookup is repeated so the request transparently lands on another backend.
+    private SocketChannel connect() throws IOException {
+        if (proxyPort > 0) {
+            return open(proxyPort);
+        }
+        if (leaseSlots > 0) {
+            return connectLeased();
+        }
+        long start = System.nanoTime();
+        try (Socket lb = openBalancer()) {
+            OutputStream out = lb.getOutputStream();
+            BufferedReader text = binaryProtocol ? null : new BufferedReader(new InputStreamReader(lb.getInputStream()));
+            DataInputStream data = binaryProtocol ? new DataInputStream(new BufferedInputStream(lb.getInputStream())) : null;
+            String path = routingKey(choice, type);
+            ByteBuffer frame = ByteBuffer.allocate(32 + MAX_ROUTING_KEY); // room for a FAILED and a REQUEST
+            if (binaryProtocol) {
+                frame.put(BinaryCodec.MAGIC);
+            }
+            for (int attempt = 1; ; attempt++) {
+                int port;
+                if (binaryProtocol) {
+                    encodeLookup(frame, attempt, choice, path);
+                    BinaryCodec.write(out, frame);
+                    port = decodeLookup(BinaryCodec.readFrame(data, frame));
+                    frame.clear();
+                } else {
+                    port = lookupText(out, text, choice, path);
+                }
+                if (attempt == 1) {
+                    lookupMicros.recordMicrosSince(start);
+                }
                 try {
-                    Client client = new Client(clientNum, type, LB_PORT);
-                    String response = client.runRequest();
-                    System.out.println("Client finished: " + response);
-                } catch (Exception e) {
-                    System.out.println("Client error: " + e.getMessage());
+                    return open(port);
+                } catch (IOException e) {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    retries.increment();
+                    Log.warn("Server on port {} unreachable ({}), trying another", port, e.getMessage());
+                    if (binaryProtocol) {
+                        int begin = BinaryCodec.begin(frame, BinaryCodec.FAILED, attempt);
+                        BinaryCodec.putVarint(frame, port);
+                        BinaryCodec.end(frame, begin); // sent together with the next lookup
+                    } else {
+                        out.write(("FAILED " + port + "\n").getBytes(StandardCharsets.US_ASCII));
+                    }
                 }
-            });
-            threads[i].start();
+            }
         }
-        for (Thread t : threads) {
+    }
+
+    // connect() for leasing clients: the slot comes from the shared routing table, which reaches the load balancer only
+    // when it has to lease more or report an unreachable server
+    private SocketChannel connectLeased() throws IOException {
+        int[] candidates = balancers();
+        int b = 0;
+        Strategy strategy = Strategy.forRequestType(requestTypeFor(choice));
+        for (int attempt = 1; ; attempt++) {
+            RoutingTable table = routingTables.computeIfAbsent(candidates[b], p -> new RoutingTable(p, binaryProtocol, leaseSlots, leaseMillis));
+            long start = System.nanoTime();
+            int port;
+            try {
+                port = table.take(strategy);
+            } catch (ConnectException e) {
+                if (++b >= candidates.length) {
+                    throw e;
+                }
+                attempt--; // a balancer that is down does not use up an attempt
+                continue;
+            }
+            if (attempt == 1) {
+                lookupMicros.recordMicrosSince(start);
+            }
             try {
-                t.join();
-            } catch (InterruptedException ignored) {
+                return open(port);
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                retries.increment();
+                Log.warn("Server on port {} unreachable ({}), trying another", port, e.getMessage());
+                table.failed(port);
             }
         }
-        System.out.println("All clients finished.");
+    }
+
+    // The balancers to try for one lookup, next in turn first
+    private int[] balancers() {
+        if (lbPorts == null || lbPorts.length == 0) {
+            return new int[]{lbPort};
+        }
+        int first = Math.floorMod(nextBalancer.getAndIncrement(), lbPorts.length);
+        int[] order = new int[lbPorts.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = lbPorts[(first + i) % order.length];
+        }
+        return order;
+    }
+
+    // Connects to the first of the balancers that accepts
+    private Socket openBalancer() throws IOException {
+        ConnectException refused = null;
+        for (int p : balancers()) {
+            try {
+                return new Socket("localhost", p);
+            } catch (ConnectException e) {
+                refused = e;
+            }
+        }
+        throw refused;
+    }
+
+    private static SocketChannel open(int port) throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.socket().connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MILLIS);
+            return ch;
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static int lookupText(OutputStream out, BufferedReader in, int choice, String path) throws IOException {
+        out.write(lookupLine(choice, path).getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String p = in.readLine();
+        if (p == null) {
+            throw new IOException("Load balancer closed the connection");
+        }
+        if ("NO_SERVER".equals(p)) {
+            throw new IOException("No server available");
+        }
+        return Integer.parseInt(p);
+    }
+
+    // Appends a REQUEST frame for the strategy that serves the choice, followed by the routing path if there is one
+    static void encodeLookup(ByteBuffer b, long id, int choice, String path) {
+        int start = BinaryCodec.begin(b, BinaryCodec.REQUEST, id);
+        b.put((byte) Strategy.forRequestType(requestTypeFor(choice)).ordinal());
+        if (path != null) {
+            BinaryCodec.putString(b, path);
+        }
+        BinaryCodec.end(b, start);
+    }
+
+    // "REQUEST <type> [path]" line for the text protocol
+    static String lookupLine(int choice, String path) {
+        return "REQUEST " + requestTypeFor(choice) + (path != null ? " " + path : "") + "\n";
+    }
+
+    // Port from an ASSIGNED reply frame positioned at its opcode
+    static int decodeLookup(ByteBuffer frame) throws IOException {
+        if (frame == null) {
+            throw new IOException("Load balancer closed the connection");
+        }
+        byte opcode = frame.get();
+        BinaryCodec.getVarint(frame);
+        if (opcode == BinaryCodec.NO_SERVER) {
+            throw new IOException("No server available");
+        }
+        if (opcode != BinaryCodec.ASSIGNED) {
+            throw new IOException("Unexpected reply opcode " + opcode);
+        }
+        return BinaryCodec.getInt(frame);
+    }
+
+    // Shortens long lines, such as video frames with payloads, before they are logged
+    private static String preview(String line) {
+        return line.length() > 120 ? line.substring(0, 120) + "... (" + line.length() + " chars)" : line;
+    }
+
+    // Path a consistent-hash pool routes file and directory requests by, so repeated requests for it find a warm
+    // cache; null for computations and streams, and for paths longer than a lookup may be (they go unkeyed)
+    static String routingKey(int choice, String type) {
+        if (choice != 1 && choice != 2 && choice != Server.BINARY_FILE || type == null) {
+            return null;
+        }
+        String path = (choice == 1 ? DirectoryListing.pathOf(type) : type).trim();
+        return path.isEmpty() || path.getBytes(StandardCharsets.UTF_8).length > MAX_ROUTING_KEY ? null : path;
+    }
+
+    // Maps a menu choice to the request type the load balancer routes on
+    static String requestTypeFor(int choice) {
+        switch (choice) {
+            case 3:
+                return "compute";
+            case 4:
+                return "stream";
+            default:
+                return "file";
+        }
+    }
+
+    // Runs multiple clients in parallel for testing
+    public static int testHundredClients(int numClients) {
+        return testHundredClients(numClients, LB_PORT);
+    }
+
+    // Runs numClients requests at once against the given load balancer, cycling through the four request types,
+    // and returns how many succeeded; see LoadGenerator for sustained or rate-controlled load
+    public static int testHundredClients(int numClients, int lbPort) {
+        LoadGenerator gen = new LoadGenerator(lbPort);
+        gen.setMix("1:testDir,2:testFile.txt,3:5,4:10");
+        gen.setClosedLoop(numClients);
+        gen.setRequestCount(numClients);
+        gen.setDuration(0, 0);
+        gen.setExecutionMode(ExecutionMode.PLATFORM);
+        try {
+            LoadGenerator.Result result = gen.run();
+            Log.info("All clients finished.\n{}{}", result, metrics.render());
+            return (int) result.succeeded();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
     }
 
     // Returns a descriptive name for the request type
@@ -114,6 +449,8 @@ public class Client {
                 return "Computation";
             case 4:
                 return "Video streaming";
+            case 5:
+                return "Binary file transfer";
             default:
                 return "Unknown";
         }
@@ -132,21 +469,22 @@ public class Client {
                 System.out.println("2 = File transfer");
                 System.out.println("3 = Computation");
                 System.out.println("4 = Video streaming");
+                System.out.println("5 = Binary file transfer");
                 System.out.print("Choice: ");
                 int choice = Integer.parseInt(scanner.nextLine().trim());
                 String type = null;
                 if (choice == 1) {
-                    System.out.println("Enter directory path:");
+                    System.out.println("Enter directory path (options: path?recursive&glob=*.txt&limit=100&cursor=0&meta):");
                     type = scanner.nextLine().trim();
-                } else if (choice == 2) {
+                } else if (choice == 2 || choice == Server.BINARY_FILE) {
                     System.out.println("Enter file path:");
                     type = scanner.nextLine().trim();
                     System.out.println("Sending the file");
                 } else if (choice == 3) {
-                    System.out.println("Enter number of seconds:");
+                    System.out.println("Enter number of seconds, or <workload>:<size> with workload prime, hash or matrix:");
                     type = scanner.nextLine().trim();
                 } else if (choice == 4) {
-                    System.out.println("Enter number of frames:");
+                    System.out.println("Enter number of frames (frames[:fps[:frameSize]]):");
                     type = scanner.nextLine().trim();
                 } else {
                     System.out.println("Invalid choice");
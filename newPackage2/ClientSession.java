@@ -0,0 +1,261 @@
+package networkProject.newPackage2;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps one connection to the load balancer and one multiplexed connection per server open across requests,
+// so a request costs no TCP handshakes once the connections are warm
+public class ClientSession implements Closeable {
+
+    private int lbPort; // the balancer the lookup connection goes to
+    private int[] lbPorts; // balancers of a cluster to fail over to; null uses lbPort only
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Integer, MuxConnection> servers = new ConcurrentHashMap<>();
+    private boolean binaryProtocol = true; // lookups as REQUEST/ASSIGNED frames rather than text lines
+    private Socket lb;
+    private BufferedReader lbIn;
+    private DataInputStream lbData;
+    private OutputStream lbOut;
+    private RoutingTable leases; // set when requests spend leased slots instead of looking up one by one
+    private ByteBuffer lbFrame = ByteBuffer.allocate(32 + Client.MAX_ROUTING_KEY); // reused for every binary lookup, under the lookup lock
+
+    public ClientSession(int lbPort) {
+        this.lbPort = lbPort;
+    }
+
+    // Lets the session move its lookup connection to the next balancer of a cluster when its own one goes away
+    public void setLoadBalancers(int... ports) {
+        this.lbPorts = ports;
+    }
+
+    // Chooses binary frames (the default) or text lines for lookups; server connections are multiplexed text either way
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // Spends slots leased from the load balancer, slots at a time for up to ttlMillis, instead of one lookup per
+    // request; 0 slots turns leasing off. Call before the first request and after setBinaryProtocol.
+    public void setLease(int slots, long ttlMillis) {
+        leases = slots > 0 ? new RoutingTable(lbPort, binaryProtocol, slots, ttlMillis) : null;
+    }
+
+    // Sends one request and waits for the complete response, recording it in the client metrics like a one-shot request
+    public String request(int choice, String type) throws IOException {
+        long start = System.nanoTime();
+        try {
+            String response = submit(choice, type).get();
+            Client.recordRequest(choice, start);
+            return response;
+        } catch (InterruptedException e) {
+            Client.recordFailure();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Client.recordFailure();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            Client.recordFailure();
+            throw e;
+        }
+    }
+
+    // Sends one request without waiting; several requests may be in flight on the same server connection
+    // A server that cannot be reached is reported with FAILED and the request goes to another one
+    public CompletableFuture<String> submit(int choice, String type) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            int port = leases != null ? leases.take(Strategy.forRequestType(Client.requestTypeFor(choice)))
+                    : lookup(choice, Client.routingKey(choice, type));
+            MuxConnection conn;
+            try {
+                synchronized (servers) {
+                    conn = servers.get(port);
+                    if (conn == null || conn.closed) {
+                        conn = new MuxConnection(port);
+                        servers.put(port, conn);
+                    }
+                }
+            } catch (IOException e) {
+                if (attempt >= Client.MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Log.warn("Server on port {} unreachable ({}), trying another", port, e.getMessage());
+                if (leases != null) {
+                    leases.failed(port);
+                } else {
+                    reportFailure(port);
+                }
+                continue;
+            }
+            return conn.send(nextId.incrementAndGet(), choice, type);
+        }
+    }
+
+    // Tells the load balancer the server it assigned could not be reached; there is no reply
+    private synchronized void reportFailure(int port) throws IOException {
+        if (binaryProtocol) {
+            lbFrame.clear();
+            int start = BinaryCodec.begin(lbFrame, BinaryCodec.FAILED, nextId.incrementAndGet());
+            BinaryCodec.putVarint(lbFrame, port);
+            BinaryCodec.end(lbFrame, start);
+            BinaryCodec.write(lbOut, lbFrame);
+        } else {
+            lbOut.write(("FAILED " + port + "\n").getBytes(StandardCharsets.US_ASCII));
+            lbOut.flush();
+        }
+    }
+
+    // Asks the load balancer for a server port over the persistent lookup connection
+    private synchronized int lookup(int choice, String path) throws IOException {
+        boolean connected = false;
+        if (lb == null || lb.isClosed()) {
+            lb = openBalancer();
+            lb.setTcpNoDelay(true);
+            lbOut = lb.getOutputStream();
+            if (binaryProtocol) {
+                lbData = new DataInputStream(new BufferedInputStream(lb.getInputStream()));
+            } else {
+                lbIn = new BufferedReader(new InputStreamReader(lb.getInputStream()));
+            }
+            connected = true;
+        }
+        if (binaryProtocol) {
+            lbFrame.clear();
+            if (connected) {
+                lbFrame.put(BinaryCodec.MAGIC); // sent once, ahead of the connection's first frame
+            }
+            Client.encodeLookup(lbFrame, nextId.incrementAndGet(), choice, path);
+            BinaryCodec.write(lbOut, lbFrame);
+            ByteBuffer reply = BinaryCodec.readFrame(lbData, lbFrame);
+            if (reply == null) {
+                lb.close();
+                throw new IOException("Load balancer closed the connection");
+            }
+            lbFrame = reply;
+            return Client.decodeLookup(reply);
+        }
+        lbOut.write(Client.lookupLine(choice, path).getBytes(StandardCharsets.UTF_8));
+        lbOut.flush();
+        String p = lbIn.readLine();
+        if (p == null) {
+            lb.close();
+            throw new IOException("Load balancer closed the connection");
+        }
+        if ("NO_SERVER".equals(p)) {
+            throw new IOException("No server available");
+        }
+        return Integer.parseInt(p);
+    }
+
+    // Connects to our balancer, or else to the first one after it in the cluster that accepts, which becomes ours
+    private Socket openBalancer() throws IOException {
+        if (lbPorts == null) {
+            return new Socket("localhost", lbPort);
+        }
+        int start = 0;
+        while (start < lbPorts.length && lbPorts[start] != lbPort) {
+            start++;
+        }
+        ConnectException refused = null;
+        for (int i = 0; i < lbPorts.length; i++) {
+            int p = lbPorts[(start + i) % lbPorts.length];
+            try {
+                Socket s = new Socket("localhost", p);
+                lbPort = p;
+                return s;
+            } catch (ConnectException e) {
+                refused = e;
+            }
+        }
+        throw refused;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (MuxConnection conn : servers.values()) {
+            conn.close();
+        }
+        servers.clear();
+        if (leases != null) {
+            leases.close();
+        }
+        if (lb != null) {
+            lb.close();
+        }
+    }
+
+    // A multiplexed connection to one server; a reader thread routes tagged response lines to their requests
+    private static class MuxConnection {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+        private volatile boolean closed;
+
+        MuxConnection(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            out.write((Server.MUX + "\n").getBytes(StandardCharsets.US_ASCII));
+            Thread reader = new Thread(this::readLoop, "mux-reader-" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        CompletableFuture<String> send(long id, int choice, String type) throws IOException {
+            Pending p = new Pending();
+            pending.put(id, p);
+            synchronized (out) {
+                out.write((id + " " + choice + " " + type + "\n").getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            return p.future;
+        }
+
+        // Response lines are "<id> D <text>" for data and "<id> E" when the request is complete
+        private void readLoop() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    int sp = line.indexOf(' ');
+                    if (sp < 0 || sp + 1 >= line.length()) {
+                        continue;
+                    }
+                    Pending p = pending.get(Long.parseLong(line.substring(0, sp)));
+                    if (p == null) {
+                        continue;
+                    }
+                    if (line.charAt(sp + 1) == 'E') {
+                        pending.remove(Long.parseLong(line.substring(0, sp)));
+                        int len = p.text.length();
+                        p.future.complete(len > 0 ? p.text.substring(0, len - 1) : "");
+                    } else {
+                        p.text.append(line, Math.min(sp + 3, line.length()), line.length()).append('\n');
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // fall through and fail whatever is still pending
+            }
+            closed = true;
+            for (Pending p : pending.values()) {
+                p.future.completeExceptionally(new IOException("Server closed the connection"));
+            }
+            pending.clear();
+        }
+
+        void close() throws IOException {
+            closed = true;
+            socket.close();
+        }
+    }
+
+    private static class Pending {
+
+        final StringBuilder text = new StringBuilder();
+        final CompletableFuture<String> future = new CompletableFuture<>();
+    }
+}
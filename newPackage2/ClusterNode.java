@@ -0,0 +1,473 @@
+package networkProject.newPackage2;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Joins several LoadBalancer processes into one cluster. Every node owns the servers that registered with it and
+// keeps their slots; membership and load are shared by gossip. Each round a node bumps the version of its own state
+// (its servers with capacity, slots in use, health and latency) and pushes every node state it knows to a few random
+// peers, so states spread transitively and a node whose version stops advancing is treated as down. When a lookup
+// finds no free local slot, the node forwards it with PEER_REQUEST to the peer that gossip says has the most free
+// slots for the strategy; the owner claims the slot, so FREE from the server keeps the accounting in one place, and
+// the forwarding node hands the client the port. The forwarder confirms each ASSIGNED it uses with PEER_ACK and
+// returns one that comes too late with a PEER_FREE naming its request; the owner frees whatever a lost connection
+// left unconfirmed.
+// Peers talk text lines on a separate cluster port:
+//   STATE <node> <version> <lbPort> <count>, then count x "S <port> <strategy> <capacity> <inUse> <up> <latencyMicros>"
+//   PEER_REQUEST <id> <strategy> <key> [<count>]  answered by  ASSIGNED <id> <port> [<port> ...]  or  NO_SERVER <id>;
+//                                    a count asks for up to that many slots for a lease, one port listed per slot
+//   PEER_ACK <id>  for an assignment handed to a client, unanswered
+//   PEER_FREE <port> [<id>], PEER_FAILED <port>  for slots and failures of forwarded assignments, unanswered; the id
+//                                              marks the unconfirmed assignment of that request being returned
+class ClusterNode {
+
+    private static final long GOSSIP_MILLIS = 200;
+    private static final long NODE_TIMEOUT_MILLIS = 3000; // a node whose version has not advanced for this long is down
+    private static final long FORWARD_TIMEOUT_MILLIS = 1000;
+    private static final int FANOUT = 2; // peers pushed to per round
+
+    private final LoadBalancer lb;
+    private final int nodePort; // this node's cluster port, which also identifies it
+    private final int lbPort;
+    private final Map<Integer, NodeState> states = new ConcurrentHashMap<>(); // by node port, own state included
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>(); // outbound connections by node port
+    private final Map<Integer, ServerInfo> remoteServers = new ConcurrentHashMap<>(); // stand-ins for forwarded assignments
+    private final AtomicLong requestIds = new AtomicLong();
+    private final LongAdder forwarded;
+    private final LongAdder forwardMisses;
+    private final LongAdder gossipRounds;
+    private long version; // gossip thread only
+    private volatile boolean running = true;
+    private ServerSocket listener;
+    private ScheduledExecutorService gossiper;
+
+    ClusterNode(LoadBalancer lb, int nodePort, int lbPort, int[] seedPorts) {
+        this.lb = lb;
+        this.nodePort = nodePort;
+        this.lbPort = lbPort;
+        for (int p : seedPorts) {
+            if (p != nodePort) {
+                states.put(p, new NodeState(p, 0, 0, 0, Collections.emptyList())); // known by address until it gossips
+            }
+        }
+        forwarded = lb.metrics.counter("cluster.forwarded");
+        forwardMisses = lb.metrics.counter("cluster.forward_misses");
+        gossipRounds = lb.metrics.counter("cluster.gossip_rounds");
+        lb.metrics.gauge("cluster.live_nodes", this::liveNodes);
+    }
+
+    // Opens the cluster port and starts gossiping
+    void start() throws IOException {
+        listener = new ServerSocket(nodePort);
+        Log.info("Load Balancer cluster node on port {} with seeds {}", nodePort, states.keySet());
+        Thread acceptor = new Thread(this::accept, "lb-cluster-" + nodePort);
+        acceptor.setDaemon(true);
+        acceptor.start();
+        gossiper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lb-gossip-" + nodePort);
+            t.setDaemon(true);
+            return t;
+        });
+        gossiper.scheduleWithFixedDelay(this::gossip, 0, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        running = false;
+        if (gossiper != null) {
+            gossiper.shutdownNow();
+        }
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (Peer p : peers.values()) {
+            p.close();
+        }
+    }
+
+    // Asks the live peer with the most free slots for the strategy to claim one; completes with a stand-in for the
+    // assigned server, or null when no peer has room, answers NO_SERVER or does not answer in time
+    CompletableFuture<ServerInfo> forward(Strategy strategy, long routingKey) {
+        return forward(strategy, routingKey, 1).thenApply(claimed -> claimed.isEmpty() ? null : claimed.get(0));
+    }
+
+    // Like forward, for up to count slots from that one peer, as a lease wants them; one stand-in per slot, the same
+    // instance for slots on the same server. Empty when the peer has none.
+    CompletableFuture<List<ServerInfo>> forward(Strategy strategy, long routingKey, int count) {
+        long now = System.currentTimeMillis();
+        NodeState best = null;
+        int bestFree = 0;
+        for (NodeState s : states.values()) {
+            if (s.node == nodePort || !s.live(now)) {
+                continue;
+            }
+            int free = s.freeSlots(strategy);
+            if (free > bestFree) {
+                best = s;
+                bestFree = free;
+            }
+        }
+        if (best == null) {
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        }
+        NodeState owner = best;
+        long id = requestIds.incrementAndGet();
+        String request = "PEER_REQUEST " + id + " " + strategy + " " + routingKey + (count > 1 ? " " + count : "");
+        CompletableFuture<int[]> reply = peer(owner.node).call(id, request);
+        return reply.completeOnTimeout(null, FORWARD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).thenApply(ports -> {
+            if (ports == null) {
+                forwardMisses.increment();
+                return Collections.emptyList();
+            }
+            forwarded.increment();
+            List<ServerInfo> claimed = new ArrayList<>(ports.length);
+            for (int port : ports) {
+                claimed.add(remoteServers.compute(port, (p, s) -> s != null && s.owner == owner.node ? s : standIn(p, strategy, owner.node)));
+            }
+            return claimed;
+        });
+    }
+
+    // Gives a forwarded assignment's slot back to the node that owns the server
+    void release(ServerInfo remote) {
+        peer(remote.owner).send("PEER_FREE " + remote.port);
+    }
+
+    // Passes a client's FAILED report for a server another node owns to that node; false if no node owns it
+    boolean reportFailure(int serverPort) {
+        ServerInfo remote = remoteServers.get(serverPort);
+        if (remote == null) {
+            return false;
+        }
+        peer(remote.owner).send("PEER_FAILED " + serverPort);
+        return true;
+    }
+
+    private ServerInfo standIn(int port, Strategy strategy, int owner) {
+        ServerInfo s = new ServerInfo(port, strategy, null, 1, new CircuitBreaker(1, 1, 1), new PhiAccrualDetector(1000));
+        s.owner = owner;
+        return s;
+    }
+
+    // One gossip round: refresh our own state, forget long-dead nodes and push everything we know to a few peers
+    private void gossip() {
+        try {
+            long now = System.currentTimeMillis();
+            List<Entry> own = new ArrayList<>();
+            for (ServerInfo s : lb.localServers()) {
+                own.add(new Entry(s.port, s.strategy, s.capacity, s.inUse.get(), !s.removed && s.breaker.allowsTraffic(),
+                        s.latencyEwmaMicros));
+            }
+            states.put(nodePort, new NodeState(nodePort, ++version, lbPort, now, own));
+            states.values().removeIf(s -> s.version > 0 && now - s.receivedAt > 10 * NODE_TIMEOUT_MILLIS);
+            StringBuilder sb = new StringBuilder();
+            for (NodeState s : states.values()) {
+                if (s.version > 0) {
+                    s.appendTo(sb);
+                }
+            }
+            String message = sb.toString();
+            List<Integer> targets = new ArrayList<>(states.keySet());
+            targets.remove(Integer.valueOf(nodePort));
+            Collections.shuffle(targets, ThreadLocalRandom.current());
+            for (int i = 0; i < Math.min(FANOUT, targets.size()); i++) {
+                peer(targets.get(i)).send(message);
+            }
+            gossipRounds.increment();
+        } catch (RuntimeException e) {
+            Log.warn("Gossip round failed: {}", e.getMessage());
+        }
+    }
+
+    // Keeps a received state if it is newer than the one we have; stamping it with our clock decides liveness
+    private void merge(NodeState incoming) {
+        if (incoming.node == nodePort) {
+            return;
+        }
+        states.merge(incoming.node, incoming, (old, s) -> s.version > old.version ? s : old);
+    }
+
+    private int liveNodes() {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (NodeState s : states.values()) {
+            n += s.node == nodePort || s.live(now) ? 1 : 0;
+        }
+        return n;
+    }
+
+    private Peer peer(int node) {
+        return peers.computeIfAbsent(node, Peer::new);
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket s = listener.accept();
+                Thread t = new Thread(() -> serve(s), "lb-cluster-peer-" + nodePort);
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Cluster accept failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Handles one inbound peer connection: gossip, forwarded lookups and their slot returns. Slots assigned over it
+    // that the forwarder has neither confirmed nor returned are freed when it closes.
+    private void serve(Socket s) {
+        Map<Long, List<ServerInfo>> unconfirmed = new HashMap<>(); // slots by request id
+        try (Socket socket = s) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                switch (parts[0]) {
+                    case "STATE":
+                        merge(NodeState.read(parts, in));
+                        break;
+                    case "PEER_REQUEST":
+                        int count = parts.length > 4
+                                ? Math.max(1, Math.min(Integer.parseInt(parts[4]), LoadBalancer.MAX_LEASE_SLOTS)) : 1;
+                        List<ServerInfo> claimed = new ArrayList<>(count);
+                        ServerInfo selected;
+                        while (claimed.size() < count
+                                && (selected = lb.assignLocal(Strategy.parse(parts[2]), Long.parseLong(parts[3]))) != null) {
+                            claimed.add(selected);
+                        }
+                        StringBuilder reply = new StringBuilder(claimed.isEmpty() ? "NO_SERVER " : "ASSIGNED ").append(parts[1]);
+                        for (ServerInfo srv : claimed) {
+                            reply.append(' ').append(srv.port);
+                        }
+                        if (!claimed.isEmpty()) {
+                            unconfirmed.put(Long.parseLong(parts[1]), claimed);
+                        }
+                        out.write((reply + "\n").getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                        break;
+                    case "PEER_ACK":
+                        unconfirmed.remove(Long.parseLong(parts[1]));
+                        break;
+                    case "PEER_FREE":
+                        int port = Integer.parseInt(parts[1]);
+                        List<ServerInfo> late = parts.length > 2 ? unconfirmed.get(Long.parseLong(parts[2])) : null;
+                        if (late != null) { // a late assignment handed back, one slot per PEER_FREE
+                            for (int i = 0; i < late.size(); i++) {
+                                if (late.get(i).port == port) {
+                                    late.remove(i);
+                                    break;
+                                }
+                            }
+                            if (late.isEmpty()) {
+                                unconfirmed.remove(Long.parseLong(parts[2]));
+                            }
+                        }
+                        ServerInfo srv = lb.localServer(port);
+                        if (srv != null) {
+                            lb.markFree(srv);
+                        }
+                        break;
+                    case "PEER_FAILED":
+                        lb.reportFailure(Integer.parseInt(parts[1]));
+                        break;
+                    default:
+                        Log.warn("Unexpected cluster message: {}", line);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.debug("Cluster peer connection closed: {}", e.getMessage());
+        }
+        for (List<ServerInfo> claimed : unconfirmed.values()) {
+            for (ServerInfo srv : claimed) {
+                Log.debug("Freeing unconfirmed forwarded slot on port {}", srv.port);
+                lb.markFree(srv);
+            }
+        }
+    }
+
+    // A server as gossiped by its owner
+    static final class Entry {
+
+        final int port;
+        final Strategy strategy;
+        final int capacity;
+        final int inUse;
+        final boolean up;
+        final long latencyMicros;
+
+        Entry(int port, Strategy strategy, int capacity, int inUse, boolean up, long latencyMicros) {
+            this.port = port;
+            this.strategy = strategy;
+            this.capacity = capacity;
+            this.inUse = inUse;
+            this.up = up;
+            this.latencyMicros = latencyMicros;
+        }
+    }
+
+    // One node's servers at one version; immutable, replaced wholesale by a newer version
+    static final class NodeState {
+
+        final int node;
+        final long version; // 0 for a seed that has not gossiped yet
+        final int lbPort;
+        final long receivedAt;
+        final List<Entry> servers;
+
+        NodeState(int node, long version, int lbPort, long receivedAt, List<Entry> servers) {
+            this.node = node;
+            this.version = version;
+            this.lbPort = lbPort;
+            this.receivedAt = receivedAt;
+            this.servers = servers;
+        }
+
+        boolean live(long now) {
+            return version > 0 && now - receivedAt < NODE_TIMEOUT_MILLIS;
+        }
+
+        int freeSlots(Strategy strategy) {
+            int free = 0;
+            for (Entry e : servers) {
+                if (e.strategy == strategy && e.up) {
+                    free += Math.max(0, e.capacity - e.inUse);
+                }
+            }
+            return free;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append("STATE ").append(node).append(' ').append(version).append(' ').append(lbPort).append(' ')
+                    .append(servers.size()).append('\n');
+            for (Entry e : servers) {
+                sb.append("S ").append(e.port).append(' ').append(e.strategy).append(' ').append(e.capacity).append(' ')
+                        .append(e.inUse).append(' ').append(e.up ? 1 : 0).append(' ').append(e.latencyMicros).append('\n');
+            }
+        }
+
+        // Parses a STATE header and reads its server lines
+        static NodeState read(String[] header, BufferedReader in) throws IOException {
+            int count = Integer.parseInt(header[4]);
+            List<Entry> servers = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new EOFException("Truncated STATE");
+                }
+                String[] f = line.split(" ");
+                servers.add(new Entry(Integer.parseInt(f[1]), Strategy.parse(f[2]), Integer.parseInt(f[3]),
+                        Integer.parseInt(f[4]), "1".equals(f[5]), Long.parseLong(f[6])));
+            }
+            return new NodeState(Integer.parseInt(header[1]), Long.parseLong(header[2]), Integer.parseInt(header[3]),
+                    System.currentTimeMillis(), servers);
+        }
+    }
+
+    // Outbound connection to one peer, opened on first use and again after it fails. Writes are serialized; a reader
+    // thread completes forwarded lookups by request id.
+    private final class Peer {
+
+        private final int node;
+        private final Map<Long, CompletableFuture<int[]>> pending = new ConcurrentHashMap<>();
+        private Socket socket;
+
+        Peer(int node) {
+            this.node = node;
+        }
+
+        // Sends a request whose ASSIGNED or NO_SERVER reply completes the returned future with the assigned ports
+        // (null for NO_SERVER)
+        CompletableFuture<int[]> call(long id, String line) {
+            CompletableFuture<int[]> reply = new CompletableFuture<>();
+            pending.put(id, reply);
+            reply.whenComplete((port, e) -> pending.remove(id));
+            if (!send(line)) {
+                reply.complete(null);
+            }
+            return reply;
+        }
+
+        // Writes one or more lines; false if the peer cannot be reached, which gossip will notice
+        synchronized boolean send(String lines) {
+            try {
+                if (socket == null || socket.isClosed()) {
+                    connect();
+                }
+                OutputStream out = socket.getOutputStream();
+                out.write((lines.endsWith("\n") ? lines : lines + "\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                return true;
+            } catch (IOException e) {
+                close();
+                return false;
+            }
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress("localhost", node), (int) GOSSIP_MILLIS);
+            s.setTcpNoDelay(true);
+            socket = s;
+            Thread reader = new Thread(() -> readReplies(s), "lb-cluster-reader-" + node);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readReplies(Socket s) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    CompletableFuture<int[]> reply = pending.get(Long.parseLong(parts[1]));
+                    if (!"ASSIGNED".equals(parts[0])) {
+                        if (reply != null) {
+                            reply.complete(null);
+                        }
+                        continue;
+                    }
+                    int[] ports = new int[parts.length - 2];
+                    for (int i = 0; i < ports.length; i++) {
+                        ports[i] = Integer.parseInt(parts[i + 2]);
+                    }
+                    if (reply != null && reply.complete(ports)) {
+                        send("PEER_ACK " + parts[1]);
+                    } else {
+                        for (int port : ports) {
+                            send("PEER_FREE " + port + " " + parts[1]); // the lookup gave up, so the slot would never be used
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ignored) {
+            }
+            synchronized (this) {
+                if (socket == s) {
+                    close();
+                }
+            }
+        }
+
+        synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+                socket = null;
+            }
+            for (CompletableFuture<int[]> reply : pending.values()) {
+                reply.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package networkProject.newPackage2;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs CPU-bound computation requests on a ForkJoinPool sized to the cores, with admission control:
+// at most parallelism + maxQueued jobs are admitted, anything beyond that is rejected instead of oversubscribing the CPU
+class ComputeEngine {
+
+    // Pluggable CPU-bound jobs; the request parameter scales the amount of work
+    enum Workload {
+        PRIME, // count primes below size * 1,000,000 by trial division, size capped at MAX_PRIME_SIZE
+        HASH, // size * 100,000 chained SHA-256 digests, size capped at MAX_HASH_SIZE
+        MATRIX, // multiply two (64 * size)^2 matrices, at most 2048^2
+        SLEEP; // the original simulated computation: sleep for size seconds
+
+        static Workload parse(String s, Workload fallback) {
+            for (Workload w : values()) {
+                if (w.name().equalsIgnoreCase(s)) {
+                    return w;
+                }
+            }
+            return fallback;
+        }
+    }
+
+    private static final int PRIME_CHUNK = 50_000;
+    private static final int HASH_CHUNK = 10_000;
+    private static final int MATRIX_ROWS = 16;
+    private static final int MAX_PRIME_SIZE = 16; // tens of seconds of CPU at most, like the largest matrix
+    private static final int MAX_HASH_SIZE = 64;
+
+    private final ForkJoinPool pool;
+    private final int maxAdmitted;
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    ComputeEngine(int parallelism, int maxQueued) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.maxAdmitted = parallelism + maxQueued;
+    }
+
+    // Runs one job to completion on the pool; throws RejectedExecutionException when the queue is full and
+    // IllegalArgumentException for a size below 1 (below 0 for a sleep)
+    long run(Workload workload, int size) throws InterruptedException {
+        if (size < (workload == Workload.SLEEP ? 0 : 1)) {
+            throw new IllegalArgumentException("Invalid computation size: " + size);
+        }
+        if (!tryAdmit()) {
+            throw new RejectedExecutionException("Compute queue full (" + maxAdmitted + " jobs admitted)");
+        }
+        try {
+            switch (workload) {
+                case PRIME:
+                    return pool.invoke(new PrimeCount(2, Math.min(size, MAX_PRIME_SIZE) * 1_000_000L));
+                case HASH:
+                    return pool.invoke(new HashChain(0, Math.min(size, MAX_HASH_SIZE) * 100_000L));
+                case MATRIX:
+                    return matrix(Math.min(64 * size, 2048));
+                default:
+                    Thread.sleep(size * 1000L);
+                    return size;
+            }
+        } finally {
+            finished();
+        }
+    }
+
+    // Claims one admission for a job that runs outside the pool, such as a sleep on the timer wheel, so it counts
+    // against the same bound; false when the queue is full. Pair with finished().
+    boolean tryAdmit() {
+        if (admitted.incrementAndGet() > maxAdmitted) {
+            admitted.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void finished() {
+        admitted.decrementAndGet();
+    }
+
+    // Jobs admitted right now, running or waiting for a worker
+    int admitted() {
+        return admitted.get();
+    }
+
+    int queued() {
+        return Math.max(0, admitted.get() - pool.getParallelism());
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private long matrix(int n) {
+        double[][] a = new double[n][n];
+        double[][] b = new double[n][n];
+        double[][] c = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                a[i][j] = (i * 31 + j) % 17;
+                b[i][j] = (i + j * 13) % 19;
+            }
+        }
+        pool.invoke(new MatrixRows(a, b, c, 0, n));
+        double trace = 0;
+        for (int i = 0; i < n; i++) {
+            trace += c[i][i];
+        }
+        return (long) trace;
+    }
+
+    @SuppressWarnings("serial") // never serialized
+    private static class PrimeCount extends RecursiveTask<Long> {
+
+        private final long from;
+        private final long to;
+
+        PrimeCount(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > PRIME_CHUNK) {
+                long mid = (from + to) >>> 1;
+                PrimeCount left = new PrimeCount(from, mid);
+                left.fork();
+                return new PrimeCount(mid, to).compute() + left.join();
+            }
+            long count = 0;
+            for (long n = from; n < to; n++) {
+                if (isPrime(n)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static boolean isPrime(long n) {
+            if (n < 4) {
+                return n > 1;
+            }
+            if (n % 2 == 0) {
+                return false;
+            }
+            for (long d = 3; d * d <= n; d += 2) {
+                if (n % d == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class HashChain extends RecursiveTask<Long> {
+
+        private final long from;
+        private final long to;
+
+        HashChain(long from, long to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > HASH_CHUNK) {
+                long mid = (from + to) >>> 1;
+                HashChain left = new HashChain(from, mid);
+                left.fork();
+                return new HashChain(mid, to).compute() ^ left.join();
+            }
+            try {
+                MessageDigest sha = MessageDigest.getInstance("SHA-256");
+                byte[] block = ByteBuffer.allocate(32).putLong(from).array();
+                for (long i = from; i < to; i++) {
+                    block = sha.digest(block);
+                }
+                return ByteBuffer.wrap(block).getLong();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class MatrixRows extends RecursiveTask<Void> {
+
+        private final double[][] a;
+        private final double[][] b;
+        private final double[][] c;
+        private final int from;
+        private final int to;
+
+        MatrixRows(double[][] a, double[][] b, double[][] c, int from, int to) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Void compute() {
+            if (to - from > MATRIX_ROWS) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new MatrixRows(a, b, c, from, mid), new MatrixRows(a, b, c, mid, to));
+                return null;
+            }
+            int n = b.length;
+            for (int i = from; i < to; i++) {
+                for (int k = 0; k < n; k++) {
+                    double aik = a[i][k];
+                    double[] bk = b[k];
+                    double[] ci = c[i];
+                    for (int j = 0; j < n; j++) {
+                        ci[j] += aik * bk[j];
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
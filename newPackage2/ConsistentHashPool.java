@@ -0,0 +1,179 @@
+package networkProject.newPackage2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Consistent hashing with bounded loads: every server owns VIRTUAL_NODES points on a 63-bit ring placed by hashing its
+// port, and a request whose key (the file or directory path) hashes to h goes to the first server clockwise from h
+// that has a free slot and is not above LOAD_FACTOR times the pool's average load per slot. The same path therefore
+// keeps landing on the same backend, whose page cache is warm for it, while a hot path spills over to its ring
+// successors instead of piling up on one server. A JOIN or GOODBYE only moves the keys between the affected server's
+// points and their neighbours; everything else stays where it was.
+class ConsistentHashPool implements ServerPool {
+
+    static final int VIRTUAL_NODES = 128;
+    static final double LOAD_FACTOR = 1.25;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final AtomicInteger load = new AtomicInteger(); // slots in use across the members
+    private volatile Ring ring = new Ring(new ServerInfo[0]);
+
+    @Override
+    public synchronized void add(ServerInfo s) {
+        ServerInfo[] current = ring.members;
+        ServerInfo[] next = Arrays.copyOf(current, current.length + 1);
+        next[current.length] = s;
+        ring = new Ring(next);
+    }
+
+    @Override
+    public synchronized void remove(ServerInfo s) {
+        s.removed = true;
+        ServerInfo[] current = ring.members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == s) {
+                ServerInfo[] next = new ServerInfo[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                ring = new Ring(next);
+                load.addAndGet(-s.inUse.get()); // its slots no longer count towards the average
+                return;
+            }
+        }
+    }
+
+    // Requests without a key (computations routed here, queue hand-offs) land on a random point of the ring
+    @Override
+    public ServerInfo select() {
+        return select(ThreadLocalRandom.current().nextLong() >>> 1);
+    }
+
+    @Override
+    public ServerInfo select(long key) {
+        Ring r = ring;
+        int points = r.points.length;
+        if (points == 0) {
+            return null;
+        }
+        int total = Math.max(0, load.get());
+        int i = Arrays.binarySearch(r.points, key);
+        int start = i >= 0 ? i : -i - 1;
+        ServerInfo previous = null;
+        int tried = 0;
+        for (int k = 0; k < points && tried < r.members.length; k++) {
+            ServerInfo s = r.owners[(start + k) % points];
+            if (s == previous) {
+                continue; // adjacent points of the same server
+            }
+            previous = s;
+            tried++;
+            if (withinBound(s, total, r.capacity) && s.tryAcquire()) {
+                load.incrementAndGet();
+                return s;
+            }
+        }
+        for (ServerInfo s : r.members) { // every candidate is over its bound: any free slot beats queueing
+            if (s.tryAcquire()) {
+                load.incrementAndGet();
+                return s;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void release(ServerInfo s) {
+        s.release();
+        if (!s.removed) {
+            load.decrementAndGet();
+        }
+    }
+
+    @Override
+    public int size() {
+        return ring.members.length;
+    }
+
+    // True while one more request keeps the server's share of its slots within LOAD_FACTOR of the pool-wide share
+    private static boolean withinBound(ServerInfo s, int total, int capacity) {
+        return s.inUse.get() + 1 <= Math.ceil(LOAD_FACTOR * (total + 1) * s.capacity / capacity);
+    }
+
+    // Ring position of a routing key, hashed over its UTF-8 bytes so the text, binary and NIO paths agree
+    static long hash(String key) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c < 0x80) {
+                h = (h ^ c) * FNV_PRIME;
+            } else if (c < 0x800) {
+                h = (h ^ (0xC0 | c >> 6)) * FNV_PRIME;
+                h = (h ^ (0x80 | c & 0x3F)) * FNV_PRIME;
+            } else if (Character.isHighSurrogate(c) && i + 1 < key.length()) {
+                int cp = Character.toCodePoint(c, key.charAt(++i));
+                h = (h ^ (0xF0 | cp >> 18)) * FNV_PRIME;
+                h = (h ^ (0x80 | cp >> 12 & 0x3F)) * FNV_PRIME;
+                h = (h ^ (0x80 | cp >> 6 & 0x3F)) * FNV_PRIME;
+                h = (h ^ (0x80 | cp & 0x3F)) * FNV_PRIME;
+            } else {
+                h = (h ^ (0xE0 | c >> 12)) * FNV_PRIME;
+                h = (h ^ (0x80 | c >> 6 & 0x3F)) * FNV_PRIME;
+                h = (h ^ (0x80 | c & 0x3F)) * FNV_PRIME;
+            }
+        }
+        return mix(h) >>> 1;
+    }
+
+    // Ring position of the key bytes b[from, to), without allocating
+    static long hash(ByteBuffer b, int from, int to) {
+        long h = FNV_OFFSET;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (b.get(i) & 0xFF)) * FNV_PRIME;
+        }
+        return mix(h) >>> 1;
+    }
+
+    // Murmur3 finalizer: FNV alone leaves similar paths clustered on the ring
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // Immutable sorted ring; rebuilt on membership changes, which are rare next to selections
+    private static final class Ring {
+
+        final ServerInfo[] members;
+        final long[] points;
+        final ServerInfo[] owners;
+        final int capacity; // total slots
+
+        Ring(ServerInfo[] members) {
+            this.members = members;
+            long[][] entries = new long[members.length * VIRTUAL_NODES][];
+            int cap = 0;
+            for (int m = 0; m < members.length; m++) {
+                cap += members[m].capacity;
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    // placed by port, so a server that rejoins gets its old points back
+                    long point = mix(members[m].port * 0x9E3779B97F4A7C15L + v) >>> 1;
+                    entries[m * VIRTUAL_NODES + v] = new long[]{point, m};
+                }
+            }
+            Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[entries.length];
+            owners = new ServerInfo[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                points[i] = entries[i][0];
+                owners[i] = members[(int) entries[i][1]];
+            }
+            capacity = cap;
+        }
+    }
+}
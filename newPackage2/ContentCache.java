@@ -0,0 +1,211 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// Bounded LRU cache of serialized responses (directory listings and file bodies) held in off-heap buffers.
+// Entries are evicted by total size and invalidated by a WatchService on the directories they came from.
+class ContentCache {
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // guarded by this
+    private long usedBytes; // guarded by this
+    private final Map<Path, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final WatchService watcher;
+    private final Thread watcherThread;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    ContentCache(long maxBytes, int maxEntryBytes) throws IOException {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.watcher = FileSystems.getDefault().newWatchService();
+        watcherThread = new Thread(this::watchLoop, "content-cache-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    // Releases the directory watches and ends the watcher thread; the cache keeps no entries afterwards
+    void close() {
+        try {
+            watcher.close(); // wakes take() with ClosedWatchServiceException
+        } catch (IOException e) {
+            Log.warn("Closing content cache watcher failed: {}", e.getMessage());
+        }
+        try {
+            watcherThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            entries.clear();
+            usedBytes = 0;
+        }
+        generations.clear();
+    }
+
+    static String listingKey(Path dir) {
+        return "1:" + dir;
+    }
+
+    static String fileKey(int choice, Path file) {
+        return choice + ":" + file;
+    }
+
+    // Returns a read-only view of the cached response, or null on a miss
+    ByteBuffer get(String key) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e.data.duplicate();
+    }
+
+    boolean fits(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    int maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    // Starts watching dir and returns its change generation; take it before reading the content to be cached
+    long generation(Path dir) {
+        AtomicLong gen = generations.get(dir);
+        if (gen == null) {
+            try {
+                dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                generations.putIfAbsent(dir, new AtomicLong());
+            } catch (IOException e) {
+                return -1; // cannot watch, so never cache
+            }
+            gen = generations.get(dir);
+        }
+        return gen.get();
+    }
+
+    // Stores a response unless dir changed since generation was taken; the bytes are copied off-heap once
+    void put(String key, Path dir, long generation, byte[] data) {
+        if (generation < 0 || data.length > maxEntryBytes || data.length > maxBytes) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data).flip();
+        Entry e = new Entry(dir, buf.asReadOnlyBuffer());
+        synchronized (this) {
+            AtomicLong gen = generations.get(dir);
+            if (gen == null || gen.get() != generation) {
+                return;
+            }
+            Entry old = entries.put(key, e);
+            if (old != null) {
+                usedBytes -= old.data.capacity();
+            }
+            usedBytes += data.length;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext()) {
+                Entry victim = it.next().getValue();
+                it.remove();
+                usedBytes -= victim.data.capacity();
+                evictions.increment();
+            }
+        }
+    }
+
+    String stats() {
+        synchronized (this) {
+            return "cache entries=" + entries.size() + " bytes=" + usedBytes + "/" + maxBytes
+                    + " hits=" + hits.sum() + " misses=" + misses.sum()
+                    + " evictions=" + evictions.sum() + " invalidations=" + invalidations.sum();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    // Drops entries affected by file system events in watched directories
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            synchronized (this) {
+                AtomicLong gen = generations.get(dir);
+                if (gen != null) {
+                    gen.incrementAndGet();
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        invalidateDir(dir);
+                        continue;
+                    }
+                    Path child = dir.resolve((Path) event.context());
+                    remove(fileKey(2, child));
+                    remove(fileKey(Server.BINARY_FILE, child));
+                    if (event.kind() != ENTRY_MODIFY) {
+                        remove(listingKey(dir));
+                    }
+                }
+                if (!key.reset()) {
+                    generations.remove(dir); // directory is gone
+                    invalidateDir(dir);
+                }
+            }
+        }
+    }
+
+    private void invalidateDir(Path dir) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.dir.equals(dir)) {
+                it.remove();
+                usedBytes -= e.data.capacity();
+                invalidations.increment();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            usedBytes -= e.data.capacity();
+            invalidations.increment();
+        }
+    }
+
+    private static class Entry {
+
+        final Path dir;
+        final ByteBuffer data;
+
+        Entry(Path dir, ByteBuffer data) {
+            this.dir = dir;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package networkProject.newPackage2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.regex.PatternSyntaxException;
+
+// Streams a directory listing (choice 1) straight from a DirectoryStream, a chunk of lines at a time, so neither the
+// entries nor the response are ever held in full and the first bytes leave before the directory has been read to the
+// end. A plain path is answered exactly as before: one name per line and an empty last line. Options after a '?',
+// joined by '&', switch to the extended form, which ends with "END <count>" or, when limit cut it short,
+// "MORE <cursor>" to pass back as cursor= for the next page; either gets a " TRUNCATED" suffix when the depth bound
+// left subdirectories unwalked, and "ERR <reason>" replaces it when the directory cannot be read:
+//   recursive     walk subdirectories depth-first (symlinks are not followed), naming entries by relative path
+//   depth=<n>     walk at most n levels, the top directory being 1 (default and upper bound MAX_DEPTH)
+//   glob=<glob>   only entries whose name (or relative path, if the glob contains a '/') matches
+//   cursor=<n>    skip the first n matching entries
+//   limit=<n>     return at most n entries
+//   meta          "<d|f> <size> <mtimeMillis> <name>" per entry instead of the name alone
+// Entries come in the file system's own order, which is stable while the directory is unchanged; a cursor counts
+// entries, so ones added or removed between pages can shift the next page by as many. A plain listing has no room
+// for an error: one that cannot be opened is answered "Invalid directory", one that fails halfway simply ends.
+final class DirectoryListing {
+
+    static final int CHUNK_BYTES = 16 * 1024;
+    static final int MAX_DEPTH = 64; // open directory streams while walking, one per level
+
+    final Path dir;
+    private final boolean extended;
+    private boolean recursive;
+    private int depth = MAX_DEPTH;
+    private boolean truncated; // a subdirectory was left out for depth
+    private PathMatcher glob;
+    private boolean globPaths; // match the glob against relative paths rather than names
+    private long cursor;
+    private long limit; // 0 = no limit
+    private boolean meta;
+    private long entries; // written so far
+
+    private DirectoryListing(Path dir, boolean extended) {
+        this.dir = dir.toAbsolutePath().normalize();
+        this.extended = extended;
+    }
+
+    // Parses "path[?option&option...]"; a path that names a directory as given is never split, so names with a '?'
+    // keep working. Throws IllegalArgumentException for unknown or malformed options.
+    static DirectoryListing parse(String type) {
+        int q = type.lastIndexOf('?');
+        if (q < 0 || Files.isDirectory(Paths.get(type))) {
+            return new DirectoryListing(Paths.get(type), false);
+        }
+        DirectoryListing listing = new DirectoryListing(Paths.get(type.substring(0, q)), true);
+        for (String option : type.substring(q + 1).split("&")) {
+            int eq = option.indexOf('=');
+            String name = eq < 0 ? option : option.substring(0, eq);
+            String value = eq < 0 ? "" : option.substring(eq + 1);
+            try {
+                switch (name) {
+                    case "":
+                        break;
+                    case "recursive":
+                        listing.recursive = true;
+                        break;
+                    case "depth":
+                        listing.depth = (int) Math.min(MAX_DEPTH, Math.max(1, Long.parseLong(value)));
+                        break;
+                    case "meta":
+                        listing.meta = true;
+                        break;
+                    case "glob":
+                        listing.glob = FileSystems.getDefault().getPathMatcher("glob:" + value);
+                        listing.globPaths = value.contains("/");
+                        break;
+                    case "cursor":
+                        listing.cursor = Math.max(0, Long.parseLong(value));
+                        break;
+                    case "limit":
+                        listing.limit = Math.max(0, Long.parseLong(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Invalid listing option: " + option);
+                }
+            } catch (NumberFormatException | PatternSyntaxException e) {
+                throw new IllegalArgumentException("Invalid listing option: " + option);
+            }
+        }
+        return listing;
+    }
+
+    // Directory part of a listing request, which is what routing by path should see
+    static String pathOf(String type) {
+        int q = type.lastIndexOf('?');
+        return q < 0 || Files.isDirectory(Paths.get(type)) ? type : type.substring(0, q);
+    }
+
+    // True for a request without options, whose response is the same as an unstreamed listing and may be cached
+    boolean plain() {
+        return !extended;
+    }
+
+    long entries() {
+        return entries;
+    }
+
+    // Writes the listing to the sink in chunks of whole lines. Returns the complete response when it came to at most
+    // captureLimit bytes, for the caller to cache, or null; capturing stops as soon as the limit is passed. A
+    // directory that cannot be read ends the response as described above, so only a failing sink throws.
+    byte[] write(Server.ResponseSink sink, int captureLimit) throws IOException {
+        Chunker out = new Chunker(sink, captureLimit);
+        Deque<Level> levels = new ArrayDeque<>();
+        try {
+            levels.push(new Level(Files.newDirectoryStream(dir), ""));
+        } catch (IOException | DirectoryIteratorException e) {
+            Log.debug("Cannot list {}: {}", dir, e.getMessage());
+            out.line(extended ? "ERR Invalid directory" : "Invalid directory");
+            out.finish();
+            return null;
+        }
+        long skipped = 0;
+        String trailer = null;
+        try {
+            while (!levels.isEmpty()) {
+                Level level = levels.peek();
+                if (!level.entries.hasNext()) {
+                    levels.pop().stream.close();
+                    continue;
+                }
+                Path entry = level.entries.next();
+                String name = level.prefix + entry.getFileName();
+                BasicFileAttributes attrs = null;
+                if (recursive || meta) {
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        continue; // removed while we were listing
+                    }
+                }
+                if (matches(entry, name)) {
+                    if (skipped < cursor) {
+                        skipped++;
+                    } else if (limit > 0 && entries == limit) {
+                        trailer = "MORE " + (cursor + entries);
+                        break;
+                    } else {
+                        out.line(meta ? (attrs.isDirectory() ? "d " : "f ") + attrs.size() + " "
+                                + attrs.lastModifiedTime().toMillis() + " " + name : name);
+                        entries++;
+                    }
+                }
+                if (recursive && attrs.isDirectory()) {
+                    if (levels.size() >= depth) {
+                        truncated = true;
+                        continue;
+                    }
+                    try {
+                        levels.push(new Level(Files.newDirectoryStream(entry), name + "/"));
+                    } catch (IOException e) {
+                        Log.debug("Skipping unreadable directory {}: {}", entry, e.getMessage());
+                    }
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            Log.warn("Listing of {} failed: {}", dir, e.getCause().getMessage());
+            trailer = "ERR " + e.getCause().getMessage();
+            out.discard(); // a plain listing that ends early must not be cached as complete
+        } finally {
+            for (Level level : levels) {
+                level.stream.close();
+            }
+        }
+        if (extended) {
+            if (trailer == null) {
+                trailer = "END " + entries;
+            }
+            out.line(truncated && !trailer.startsWith("ERR ") ? trailer + " TRUNCATED" : trailer);
+        } else {
+            out.line(""); // an unstreamed listing was sent as one line ending in a newline of its own
+        }
+        return out.finish();
+    }
+
+    private boolean matches(Path entry, String name) {
+        return glob == null || glob.matches(globPaths ? Paths.get(name) : entry.getFileName());
+    }
+
+    // One open directory of a recursive walk
+    private static final class Level {
+
+        final DirectoryStream<Path> stream;
+        final Iterator<Path> entries;
+        final String prefix; // relative path of the directory, with a trailing '/', or "" at the top
+
+        Level(DirectoryStream<Path> stream, String prefix) {
+            this.stream = stream;
+            this.entries = stream.iterator();
+            this.prefix = prefix;
+        }
+    }
+
+    // Packs lines into one reused buffer and hands it to the sink whenever it fills up, serializing each line as
+    // Server.lineBytes does, so a streamed plain listing is byte for byte what a cached one replays
+    private static final class Chunker {
+
+        private final Server.ResponseSink sink;
+        private final int captureLimit;
+        private ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        private ByteArrayOutputStream capture;
+
+        Chunker(Server.ResponseSink sink, int captureLimit) {
+            this.sink = sink;
+            this.captureLimit = captureLimit;
+            this.capture = captureLimit > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+        void line(String text) throws IOException {
+            if (chunk.remaining() < text.length() + 1) {
+                flush();
+                if (chunk.capacity() < text.length() + 1) {
+                    chunk = ByteBuffer.allocate(text.length() + 1); // a path longer than a chunk
+                }
+            }
+            for (int i = 0; i < text.length(); i++) {
+                chunk.put((byte) text.charAt(i));
+            }
+            chunk.put((byte) '\n');
+        }
+
+        // Stops capturing, for a response that must not be cached
+        void discard() {
+            capture = null;
+        }
+
+        byte[] finish() throws IOException {
+            flush();
+            return capture != null ? capture.toByteArray() : null;
+        }
+
+        private void flush() throws IOException {
+            if (chunk.position() == 0) {
+                return;
+            }
+            chunk.flip();
+            if (capture != null) {
+                if (capture.size() + chunk.remaining() > captureLimit) {
+                    capture = null; // too big to cache, so stop copying
+                } else {
+                    capture.write(chunk.array(), 0, chunk.limit());
+                }
+            }
+            sink.bytes(chunk);
+            chunk.clear();
+        }
+    }
+}
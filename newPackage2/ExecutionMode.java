@@ -0,0 +1,59 @@
+package networkProject.newPackage2;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// How per-connection handlers are run by Server and LoadBalancer
+public enum ExecutionMode {
+
+    PLATFORM, // one platform thread per connection (idle threads are reused)
+    POOLED, // a fixed pool of platform threads; extra connections wait in the queue
+    VIRTUAL; // one virtual thread per connection (needs Java 21+, falls back to PLATFORM)
+
+    public static final int DEFAULT_POOL_SIZE = 64;
+
+    // Creates the executor that runs connection handlers in this mode
+    public ExecutorService newExecutor(String name, int poolSize) {
+        switch (this) {
+            case POOLED:
+                return Executors.newFixedThreadPool(poolSize, threadFactory(name));
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                Log.warn("Virtual threads are not available on this JVM, using {} threads.", "platform");
+                return Executors.newCachedThreadPool(threadFactory(name));
+            default:
+                return Executors.newCachedThreadPool(threadFactory(name));
+        }
+    }
+
+    // Parses a mode name such as "virtual", defaulting to PLATFORM
+    public static ExecutionMode parse(String s) {
+        for (ExecutionMode m : values()) {
+            if (m.name().equalsIgnoreCase(s)) {
+                return m;
+            }
+        }
+        return PLATFORM;
+    }
+
+    // Looked up reflectively so the project still compiles and runs on JDKs without virtual threads
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,29 @@
+package networkProject.newPackage2;
+
+// A server's registration message: "JOIN <port> <strategy> [capacity]"
+final class JoinRequest {
+
+    final int port;
+    final Strategy strategy;
+    final int capacity;
+
+    JoinRequest(int port, Strategy strategy, int capacity) {
+        this.port = port;
+        this.strategy = strategy;
+        this.capacity = capacity;
+    }
+
+    // Parses a JOIN line; servers that predate slots send no capacity and handle one request at a time
+    static JoinRequest parse(String line) {
+        String[] parts = line.trim().split(" ");
+        if (parts.length < 3 || !"JOIN".equalsIgnoreCase(parts[0])) {
+            throw new IllegalArgumentException("Malformed JOIN: " + line);
+        }
+        int capacity = parts.length > 3 ? Integer.parseInt(parts[3]) : 1;
+        return new JoinRequest(Integer.parseInt(parts[1]), Strategy.parse(parts[2]), capacity);
+    }
+
+    String toLine() {
+        return "JOIN " + port + " " + strategy + " " + capacity + "\n";
+    }
+}
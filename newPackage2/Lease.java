@@ -0,0 +1,74 @@
+package networkProject.newPackage2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// Slots the load balancer claimed for one LEASE, which a client spends on requests without asking again. Every
+// request it sends returns its slot through the server's FREE as usual; the client ends the lease with a RETURN that
+// lists the slots it never used. A lease nobody returns is reclaimed after a grace period of one more ttl.
+final class Lease {
+
+    final long id;
+    final Strategy strategy;
+    final ServerInfo[] servers; // distinct servers, in the order first claimed
+    final int[] slots; // slots claimed on each server and not returned yet
+    final long ttlMillis;
+    final long expiresAt;
+    final IntConsumer holder; // pushes INVALIDATE to the client holding the lease
+
+    Lease(long id, Strategy strategy, List<ServerInfo> claimed, long ttlMillis, IntConsumer holder) {
+        this.id = id;
+        this.strategy = strategy;
+        this.ttlMillis = ttlMillis;
+        this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        this.holder = holder;
+        ServerInfo[] distinct = new ServerInfo[claimed.size()];
+        int[] counts = new int[claimed.size()];
+        int n = 0;
+        for (ServerInfo s : claimed) {
+            int i = 0;
+            while (i < n && distinct[i] != s) {
+                i++;
+            }
+            if (i == n) {
+                distinct[n++] = s;
+            }
+            counts[i]++;
+        }
+        servers = Arrays.copyOf(distinct, n);
+        slots = Arrays.copyOf(counts, n);
+    }
+
+    boolean holds(int port) {
+        for (ServerInfo s : servers) {
+            if (s.port == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // "LEASED <id> <ttlMillis> <port>:<slots> ..." reply line
+    String line() {
+        StringBuilder sb = new StringBuilder("LEASED ").append(id).append(' ').append(ttlMillis);
+        for (int i = 0; i < servers.length; i++) {
+            sb.append(' ').append(servers[i].port).append(':').append(slots[i]);
+        }
+        return sb.append('\n').toString();
+    }
+
+    // Appends the LEASED reply frame for the LEASE with the given request id
+    void encode(ByteBuffer b, long requestId) {
+        int start = BinaryCodec.begin(b, BinaryCodec.LEASED, requestId);
+        BinaryCodec.putVarint(b, id);
+        BinaryCodec.putVarint(b, ttlMillis);
+        BinaryCodec.putVarint(b, servers.length);
+        for (int i = 0; i < servers.length; i++) {
+            BinaryCodec.putVarint(b, servers[i].port);
+            BinaryCodec.putVarint(b, slots[i]);
+        }
+        BinaryCodec.end(b, start);
+    }
+}
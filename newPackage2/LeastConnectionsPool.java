@@ -0,0 +1,110 @@
+package networkProject.newPackage2;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Least-connections relative to capacity with LRU tie-breaking, kept as a concurrent skip list of servers with a free slot.
+// Selection pops the best entry in O(log n); each server's entry is re-keyed under that server's own lock.
+class LeastConnectionsPool implements ServerPool {
+
+    private final ConcurrentSkipListSet<Key> available = new ConcurrentSkipListSet<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public void add(ServerInfo s) {
+        size.incrementAndGet();
+        reindex(s);
+    }
+
+    @Override
+    public void remove(ServerInfo s) {
+        synchronized (s) {
+            if (s.removed) {
+                return;
+            }
+            s.removed = true;
+        }
+        size.decrementAndGet();
+        reindex(s);
+    }
+
+    @Override
+    public ServerInfo select() {
+        while (true) {
+            Key k = available.pollFirst();
+            if (k == null) {
+                return null;
+            }
+            ServerInfo s = k.server;
+            synchronized (s) {
+                if (s.key != k) {
+                    continue; // stale entry, the server was re-keyed meanwhile
+                }
+                s.key = null;
+                if (s.tryAcquire()) {
+                    reindex(s); // still listed, further back, if it has slots left
+                    return s;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release(ServerInfo s) {
+        synchronized (s) {
+            s.release();
+            reindex(s);
+        }
+    }
+
+    @Override
+    public void refresh(ServerInfo s) {
+        reindex(s);
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    // Replaces the server's index entry with one reflecting its current load, or drops it if unavailable
+    private void reindex(ServerInfo s) {
+        synchronized (s) {
+            if (s.key != null) {
+                available.remove(s.key);
+                s.key = null;
+            }
+            if (s.hasFreeSlot()) {
+                s.key = new Key(s, s.inUse.get(), s.lastFreeTime);
+                available.add(s.key);
+            }
+        }
+    }
+
+    // Immutable sort key: lowest share of capacity in use first, then longest idle, then registration order
+    static final class Key implements Comparable<Key> {
+
+        final ServerInfo server;
+        final int connections;
+        final long lastFreeTime;
+
+        Key(ServerInfo server, int connections, long lastFreeTime) {
+            this.server = server;
+            this.connections = connections;
+            this.lastFreeTime = lastFreeTime;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            long load = (long) connections * o.server.capacity;
+            long otherLoad = (long) o.connections * server.capacity;
+            if (load != otherLoad) {
+                return Long.compare(load, otherLoad);
+            }
+            if (lastFreeTime != o.lastFreeTime) {
+                return Long.compare(lastFreeTime, o.lastFreeTime);
+            }
+            return Long.compare(server.id, o.server.id);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package networkProject.newPackage2;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Selection driven by the LOAD reports servers push over their control connection.
+// Weighted least-response-time scans for the lowest score; power-of-two-choices compares two random servers.
+class LoadAwarePool implements ServerPool {
+
+    private final boolean twoChoices;
+    private volatile ServerInfo[] members = new ServerInfo[0];
+
+    LoadAwarePool(boolean twoChoices) {
+        this.twoChoices = twoChoices;
+    }
+
+    @Override
+    public synchronized void add(ServerInfo s) {
+        ServerInfo[] next = Arrays.copyOf(members, members.length + 1);
+        next[members.length] = s;
+        members = next;
+    }
+
+    @Override
+    public synchronized void remove(ServerInfo s) {
+        s.removed = true;
+        ServerInfo[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == s) {
+                ServerInfo[] next = new ServerInfo[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public ServerInfo select() {
+        ServerInfo[] snapshot = members;
+        int n = snapshot.length;
+        if (n == 0) {
+            return null;
+        }
+        if (twoChoices && n > 1) {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            int i = rnd.nextInt(n);
+            int j = rnd.nextInt(n - 1);
+            if (j >= i) {
+                j++;
+            }
+            ServerInfo a = snapshot[i];
+            ServerInfo b = snapshot[j];
+            if (score(b) < score(a)) {
+                ServerInfo t = a;
+                a = b;
+                b = t;
+            }
+            if (a.tryAcquire()) {
+                return a;
+            }
+            if (b.tryAcquire()) {
+                return b;
+            }
+        }
+        return scan(snapshot);
+    }
+
+    @Override
+    public void release(ServerInfo s) {
+        s.release();
+    }
+
+    @Override
+    public int size() {
+        return members.length;
+    }
+
+    // Lowest-score available server; retries on the next best if another thread claims it first
+    private ServerInfo scan(ServerInfo[] snapshot) {
+        while (true) {
+            ServerInfo best = null;
+            double bestScore = Double.MAX_VALUE;
+            for (ServerInfo s : snapshot) {
+                if (!s.hasFreeSlot()) {
+                    continue;
+                }
+                double score = score(s);
+                if (score < bestScore || (score == bestScore && s.lastFreeTime < best.lastFreeTime)) {
+                    best = s;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            if (best.tryAcquire()) {
+                return best;
+            }
+        }
+    }
+
+    // Expected wait on a server: latency EWMA times the work ahead of a new request per slot, inflated by CPU load
+    static double score(ServerInfo s) {
+        double latency = s.latencyEwmaMicros > 0 ? s.latencyEwmaMicros : 1000.0;
+        int inFlight = Math.max(s.inUse.get(), s.reportedActive) + s.reportedQueue;
+        return latency * (inFlight + 1) / s.capacity * (1.0 + s.cpuLoad / 100.0);
+    }
+}
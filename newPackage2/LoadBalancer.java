@@ -2,32 +2,258 @@ package networkProject.newPackage2;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 public class LoadBalancer {
 
-    private List<ServerInfo> servers = new ArrayList<>();
+    private final EnumMap<Strategy, ServerPool> pools = new EnumMap<>(Strategy.class);
+    private final EnumMap<Strategy, WaitQueue> queues = new EnumMap<>(Strategy.class);
     private int port = 6789;
-    private int rrIndex = 0;
+    private int eventLoops = 0; // 0 = blocking thread-per-connection mode
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private int poolSize = ExecutionMode.DEFAULT_POOL_SIZE;
+    private volatile Closeable listener;
+    private NioEventLoop[] loops;
+    private int proxyPort = 0; // 0 = proxy (data-plane) mode disabled
+    private int proxyThreads = 1;
+    private ProxyRelay[] relays;
+    private int statsPort = 0; // 0 = no stats endpoint
+    private StatsEndpoint statsEndpoint;
+    final Metrics metrics = new Metrics("lb");
+    private final LatencyHistogram selectNanos = metrics.histogram("select_ns");
+    private final LatencyHistogram assignMicros = metrics.histogram("assign_us");
+    private final LongAdder requests = metrics.counter("requests");
+    private final LongAdder noServer = metrics.counter("no_server");
+    private final LongAdder frees = metrics.counter("free");
+    private final LongAdder rejected = metrics.counter("rejected");
+    private final LongAdder loadReports = metrics.counter("load_reports");
+    private final LongAdder clientFailures = metrics.counter("client_failures");
+    private final LongAdder ejections = metrics.counter("ejections");
+    private final LongAdder reinstatements = metrics.counter("reinstatements");
+    private final Map<Integer, ServerInfo> servers = new ConcurrentHashMap<>(); // registered servers by port
+    private long heartbeatMillis = 500; // 0 disables health checks
+    private long heartbeatTimeoutMillis = 3000;
+    private double phiThreshold = 8;
+    private int failureThreshold = 2;
+    private long breakerBackoffMillis = 1000;
+    private long breakerMaxBackoffMillis = 30_000;
+    private ScheduledExecutorService maintenance; // health checks and lease expiry
+    private ExecutorService probes; // PINGs and reinstatement probes, which may block on a stalled server
+    private final Set<ServerInfo> pinging = ConcurrentHashMap.newKeySet(); // servers with a PING in flight
+    private final Set<ServerInfo> probing = ConcurrentHashMap.newKeySet(); // servers with a reinstatement probe in flight
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>(); // live leases by id
+    private final AtomicLong leaseIds = new AtomicLong();
+    private final LongAdder leasesGranted = metrics.counter("leases");
+    private final LongAdder leasedSlots = metrics.counter("leased_slots");
+    private final LongAdder returnedSlots = metrics.counter("returned_slots");
+    private final LongAdder expiredLeases = metrics.counter("leases_expired");
+    static final int MAX_LEASE_SLOTS = 32;
+    static final long MAX_LEASE_MILLIS = 10_000;
+    private int clusterPort = 0; // 0 = standalone balancer
+    private int[] clusterPeers = new int[0];
+    private ClusterNode cluster;
+    private static final long FORWARD_RETRY_MILLIS = 20;
+    private static final byte[] PING_LINE = "PING\n".getBytes(StandardCharsets.US_ASCII);
 
     public LoadBalancer(int port) {
+        this(port, 0);
+    }
+
+    // Constructs a load balancer that serves connections on the given number of NIO event loops
+    public LoadBalancer(int port, int eventLoops) {
         this.port = port;
+        this.eventLoops = eventLoops;
+        pools.put(Strategy.STATIC, Policy.ROUND_ROBIN.newPool());
+        pools.put(Strategy.DYNAMIC, Policy.LEAST_CONNECTIONS.newPool());
+        setQueue(1024, 10_000);
+        for (Strategy st : Strategy.values()) {
+            metrics.gauge(st + ".servers", () -> pools.get(st).size());
+            metrics.gauge(st + ".queue_length", () -> queues.get(st).length());
+        }
+    }
+
+    // Chooses the selection policy for one strategy's pool; call before any server registers
+    public void setPolicy(Strategy strategy, Policy policy) {
+        pools.put(strategy, policy.newPool());
+    }
+
+    // Chooses how connection handlers run in blocking mode (platform threads, a bounded pool or virtual threads)
+    public void setExecutionMode(ExecutionMode mode, int poolSize) {
+        this.executionMode = mode;
+        this.poolSize = poolSize;
+    }
+
+    // Enables proxy mode: clients send their full request to proxyPort and the balancer relays it to a backend
+    public void setProxyPort(int proxyPort, int proxyThreads) {
+        this.proxyPort = proxyPort;
+        this.proxyThreads = proxyThreads;
+    }
+
+    // Serves the balancer's counters and latency histograms as text on a local port; 0 disables it
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    // Sets how often registered servers are pinged, the silence after which one is suspected whatever its phi, and the
+    // phi-accrual suspicion threshold; an interval of 0 disables health checks
+    public void setHealthCheck(long intervalMillis, long timeoutMillis, double phiThreshold) {
+        this.heartbeatMillis = intervalMillis;
+        this.heartbeatTimeoutMillis = timeoutMillis;
+        this.phiThreshold = phiThreshold;
+    }
+
+    // Sets how many consecutive failed client connections eject a server, and the first and longest ejection time
+    public void setCircuitBreaker(int failureThreshold, long backoffMillis, long maxBackoffMillis) {
+        this.failureThreshold = failureThreshold;
+        this.breakerBackoffMillis = backoffMillis;
+        this.breakerMaxBackoffMillis = maxBackoffMillis;
+    }
+
+    // Joins a cluster of balancers that share their servers' state: this balancer gossips and takes forwarded lookups on
+    // clusterPort and finds the others through any of the peers' cluster ports; 0 runs standalone
+    public void setCluster(int clusterPort, int... peers) {
+        this.clusterPort = clusterPort;
+        this.clusterPeers = peers;
+    }
+
+    // Counters and latency histograms (selection, time to assignment, queue waits, proxied bytes) as text
+    public String stats() {
+        return metrics.render();
     }
 
     public void start() throws IOException {
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "lb-maintenance-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        probes = Executors.newCachedThreadPool(r -> { // at most two threads per server, see pinging and probing
+            Thread t = new Thread(r, "lb-probe-" + port);
+            t.setDaemon(true);
+            return t;
+        });
+        if (heartbeatMillis > 0) {
+            maintenance.scheduleWithFixedDelay(this::checkHealth, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        maintenance.scheduleWithFixedDelay(this::expireLeases, 250, 250, TimeUnit.MILLISECONDS);
+        if (clusterPort > 0) {
+            cluster = new ClusterNode(this, clusterPort, port, clusterPeers);
+            cluster.start();
+        }
+        if (statsPort > 0) {
+            statsEndpoint = new StatsEndpoint(statsPort, metrics);
+            statsEndpoint.start();
+        }
+        if (proxyPort > 0) {
+            startProxy();
+        }
+        if (eventLoops > 0) {
+            startEventLoops();
+            return;
+        }
         ServerSocket ss = new ServerSocket(port);
-        System.out.println("Load Balancer listening on port " + port);
+        listener = ss;
+        Log.info("Load Balancer listening on port {}", port);
+        ExecutorService executor = executionMode.newExecutor("lb-" + port, poolSize);
+        try {
+            while (true) {
+                Socket s = ss.accept();
+                Log.debug("Accepted connection from: {}", s.getRemoteSocketAddress());
+                executor.execute(() -> handle(s));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Closes the listening socket, which makes start() return with an exception
+    public void stop() throws IOException {
+        if (listener != null) {
+            listener.close();
+        }
+        if (loops != null) {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+        if (relays != null) {
+            for (ProxyRelay relay : relays) {
+                relay.shutdown();
+            }
+        }
+        if (statsEndpoint != null) {
+            statsEndpoint.shutdown();
+        }
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
+        if (probes != null) {
+            probes.shutdownNow();
+        }
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+    }
+
+    // Opens the proxy listener and starts the relay threads that share it
+    private void startProxy() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(proxyPort));
+        ssc.configureBlocking(false);
+        BufferPool buffers = new BufferPool(16 * 1024, 1024);
+        relays = new ProxyRelay[proxyThreads];
+        for (int i = 0; i < proxyThreads; i++) {
+            relays[i] = new ProxyRelay(this, ssc, buffers, i);
+            relays[i].start();
+        }
+        Log.info("Load Balancer proxying client requests on port {} with {} relay thread(s)", proxyPort, proxyThreads);
+    }
+
+    // Accepts connections on a ServerSocketChannel and spreads them across a fixed set of event loops
+    private void startEventLoops() throws IOException {
+        loops = new NioEventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new NioEventLoop(this, i);
+            loops[i].start();
+        }
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+        listener = ssc;
+        Log.info("Load Balancer listening on port {} with {} event loop(s)", port, eventLoops);
+        int next = 0;
         while (true) {
-            Socket s = ss.accept();
-            System.out.println("Accepted connection from: " + s.getRemoteSocketAddress());
-            new Thread(() -> handle(s)).start();
+            SocketChannel ch = ssc.accept();
+            Log.debug("Accepted connection from: {}", ch.getRemoteAddress());
+            loops[next].register(ch);
+            next = (next + 1) % loops.length;
         }
     }
 
-    // Handles both server registration and client requests
+    // Handles both server registration and client requests, in whichever protocol the first byte announces
     private void handle(Socket s) {
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            BufferedInputStream raw = new BufferedInputStream(s.getInputStream());
+            raw.mark(1);
+            if (raw.read() == (BinaryCodec.MAGIC & 0xFF)) {
+                handleBinary(s, raw);
+                return;
+            }
+            raw.reset();
+            BufferedReader in = new BufferedReader(new InputStreamReader(raw));
             DataOutputStream out = new DataOutputStream(s.getOutputStream());
             String msg = in.readLine();
             if (msg == null) {
@@ -36,101 +262,534 @@ public class LoadBalancer {
             }
             //Server Registration
             if (msg.startsWith("JOIN")) {
-                String[] parts = msg.split(" ");
-                int port = Integer.parseInt(parts[1]);
-                String strat = parts[2];
-                ServerInfo info = new ServerInfo(port, strat, false, s);
-                synchronized (servers) {
-                    servers.add(info);
-                }
+                ServerInfo info = register(JoinRequest.parse(msg), s);
                 out.writeBytes("OK\n");
                 out.flush();
-                System.out.println("Registered server on port " + port + " with strategy " + strat);
+                info.pinger = pinger(s, PING_LINE);
                 new Thread(() -> serverStatus(info)).start();
 
-                //Client Request Handling
-            } else if (msg.startsWith("REQUEST")) {
-                String[] parts = msg.split(" ");
-                String requestType = parts.length > 1 ? parts[1].toLowerCase() : "";
-                String chosenStrategy;
-                switch (requestType) {
-                    case "file":
-                    case "directory":
-                        chosenStrategy = "static";
-                        break;
-                    case "stream":
-                    case "compute":
-                    case "computation":
-                        chosenStrategy = "dynamic";
-                        break;
-                    default:
-                        chosenStrategy = "static";
-                }
-                ServerInfo selected = selectServer(chosenStrategy);
-                if (selected != null) {
-                    selected.busy = true;
-                    out.writeBytes(selected.port + "\n");
-                    System.out.println("Assigned client to server on port " + selected.port + " (" + chosenStrategy + ")");
-                } else {
-                    out.writeBytes("NO_SERVER\n");
-                    System.out.println("No available server for client request (" + chosenStrategy + ").");
+                //Client Request Handling: the connection stays open for further lookups until the client closes it
+            } else if (isLookup(msg)) {
+                IntConsumer holder = invalidator(out, false);
+                while (msg != null && isLookup(msg)) {
+                    if (msg.startsWith("FAILED")) { // the previous lookup's server was unreachable; no reply
+                        reportFailure(msg.substring(6).trim());
+                        msg = in.readLine();
+                        continue;
+                    }
+                    if (msg.startsWith("RETURN")) { // ends a lease; no reply
+                        returnLine(msg);
+                        msg = in.readLine();
+                        continue;
+                    }
+                    if (msg.startsWith("LEASE")) {
+                        Lease lease = await(leaseLine(msg, holder), s, raw, this::abandon);
+                        try {
+                            synchronized (out) { // INVALIDATE pushes share the stream
+                                out.write((lease != null ? lease.line() : "NO_SERVER\n").getBytes(StandardCharsets.US_ASCII));
+                                out.flush();
+                            }
+                        } catch (IOException e) {
+                            if (lease != null) {
+                                abandon(lease);
+                            }
+                            throw e;
+                        }
+                        msg = in.readLine();
+                        continue;
+                    }
+                    ServerInfo selected = await(assignAsync(requestStrategy(msg), requestKey(msg)), s, raw, this::markFree);
+                    String reply = selected != null ? selected.port + "\n" : "NO_SERVER\n";
+                    try {
+                        synchronized (out) {
+                            out.write(reply.getBytes(StandardCharsets.US_ASCII)); // one segment, so keep-alive replies are not held back by Nagle
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        if (selected != null) {
+                            markFree(selected); // the client is gone, so the server will never hear from it
+                        }
+                        throw e;
+                    }
+                    msg = in.readLine();
                 }
-                out.flush();
                 s.close();
             } else {
                 s.close();
             }
         } catch (Exception e) {
-            System.out.println("Error handling connection: " + e.getMessage());
+            Log.warn("Error handling connection: {}", e.getMessage());
         }
     }
 
-    // Selects a server based on the request strategy (static: round-robin, dynamic: least-connections)
-    private ServerInfo selectServer(String strategy) {
-        synchronized (servers) {
-            if ("static".equalsIgnoreCase(strategy)) {
-                // Round-robin for static servers
-                List<ServerInfo> candidates = new ArrayList<>();
-                for (ServerInfo s : servers) {
-                    if (!s.busy && "static".equalsIgnoreCase(s.strategy)) {
-                        candidates.add(s);
-                    }
+    // Binary counterpart of handle: pipelined REQUEST frames answered in order, or a server's JOIN and status frames
+    private void handleBinary(Socket s, BufferedInputStream raw) throws IOException {
+        DataInputStream in = new DataInputStream(raw);
+        OutputStream out = s.getOutputStream();
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        ByteBuffer reply = ByteBuffer.allocate(512); // a LEASED reply lists up to MAX_LEASE_SLOTS servers
+        IntConsumer holder = null;
+        while ((frame = BinaryCodec.readFrame(in, frame)) != null) {
+            byte opcode = frame.get();
+            long id = BinaryCodec.getVarint(frame);
+            if (opcode == BinaryCodec.REQUEST) {
+                ServerInfo selected = await(assignAsync(Strategy.of(frame.get()), requestKey(frame)), s, raw, this::markFree);
+                if (selected != null) {
+                    int start = BinaryCodec.begin(reply, BinaryCodec.ASSIGNED, id);
+                    BinaryCodec.putVarint(reply, selected.port);
+                    BinaryCodec.end(reply, start);
+                } else {
+                    BinaryCodec.end(reply, BinaryCodec.begin(reply, BinaryCodec.NO_SERVER, id));
                 }
-                if (candidates.isEmpty()) {
-                    return null;
-                }
-                int pick = rrIndex % candidates.size();
-                ServerInfo chosen = candidates.get(pick);
-                rrIndex = (rrIndex + 1) % candidates.size();
-                chosen.busy = true;
-                return chosen;
-            } else if ("dynamic".equalsIgnoreCase(strategy)) {
-                // Least-connections for dynamic servers
-                List<ServerInfo> candidates = new ArrayList<>();
-                for (ServerInfo s : servers) {
-                    if (!s.busy && "dynamic".equalsIgnoreCase(s.strategy)) {
-                        candidates.add(s);
+                try {
+                    synchronized (out) {
+                        BinaryCodec.write(out, reply);
+                    }
+                } catch (IOException e) {
+                    if (selected != null) {
+                        markFree(selected);
                     }
+                    throw e;
                 }
-                if (candidates.isEmpty()) {
-                    return null;
+            } else if (opcode == BinaryCodec.LEASE) {
+                if (holder == null) {
+                    holder = invalidator(out, true);
                 }
-                ServerInfo best = candidates.get(0);
-                for (ServerInfo s : candidates) {
-                    if (s.currentConnections < best.currentConnections) {
-                        best = s;
-                    } else if (s.currentConnections == best.currentConnections) {
-                        if (s.lastFreeTime < best.lastFreeTime) {
-                            best = s;
-                        }
+                Lease lease = await(leaseFrame(frame, holder), s, raw, this::abandon);
+                encodeLease(reply, id, lease);
+                try {
+                    synchronized (out) {
+                        BinaryCodec.write(out, reply);
+                    }
+                } catch (IOException e) {
+                    if (lease != null) {
+                        abandon(lease);
                     }
+                    throw e;
                 }
-                best.busy = true;
-                best.currentConnections++;
-                return best;
+            } else if (opcode == BinaryCodec.RETURN) {
+                returnFrame(frame);
+            } else if (opcode == BinaryCodec.FAILED) {
+                reportFailure(BinaryCodec.getInt(frame));
+            } else if (opcode == BinaryCodec.JOIN) {
+                JoinRequest join = new JoinRequest(BinaryCodec.getInt(frame), Strategy.of(frame.get()), BinaryCodec.getInt(frame));
+                ServerInfo info = register(join, s);
+                BinaryCodec.end(reply, BinaryCodec.begin(reply, BinaryCodec.OK, id));
+                BinaryCodec.write(out, reply);
+                info.pinger = pinger(s, BinaryCodec.PING_FRAME);
+                ByteBuffer buf = frame;
+                new Thread(() -> binaryServerStatus(info, in, buf)).start();
+                return;
+            } else {
+                break;
             }
+        }
+        s.close();
+    }
+
+    // Waits for a lookup or lease. One that had to queue is handed over only if the client is still connected: a
+    // write to a socket the client closed meanwhile would succeed, and the slot would never come back. Null when it
+    // was given back.
+    private static <T> T await(CompletableFuture<T> pending, Socket s, BufferedInputStream in, Consumer<T> giveBack) {
+        boolean queued = !pending.isDone();
+        T granted = pending.join();
+        if (queued && granted != null && clientGone(s, in)) {
+            Log.debug("Client left while its request was queued; giving the slot back");
+            giveBack.accept(granted);
             return null;
         }
+        return granted;
+    }
+
+    // True if the client has closed its side of the connection. Probes for EOF with a short read that leaves any
+    // pipelined bytes in the stream for the next readLine or frame.
+    private static boolean clientGone(Socket s, BufferedInputStream in) {
+        try {
+            if (in.available() > 0) {
+                return false;
+            }
+            int timeout = s.getSoTimeout();
+            s.setSoTimeout(1);
+            try {
+                in.mark(1);
+                if (in.read() < 0) {
+                    return true;
+                }
+                in.reset();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return false; // connected, nothing sent
+            } finally {
+                s.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // Lines a client sends on its lookup connection
+    private static boolean isLookup(String msg) {
+        return msg.startsWith("REQUEST") || msg.startsWith("FAILED") || msg.startsWith("LEASE") || msg.startsWith("RETURN");
+    }
+
+    // Maps a "REQUEST <type> [path]" line to the strategy that serves it
+    static Strategy requestStrategy(String msg) {
+        String[] parts = msg.split(" ");
+        return Strategy.forRequestType(parts.length > 1 ? parts[1].toLowerCase() : "");
+    }
+
+    // Routing key of a "REQUEST <type> <path>" line: the path, which may contain spaces, hashed onto the ring
+    static long requestKey(String msg) {
+        int type = msg.indexOf(' ');
+        int path = type < 0 ? -1 : msg.indexOf(' ', type + 1);
+        return path < 0 || path + 1 == msg.length() ? ServerPool.NO_KEY : ConsistentHashPool.hash(msg.substring(path + 1));
+    }
+
+    // Routing key of a REQUEST frame positioned after its strategy byte: the optional trailing path string
+    static long requestKey(ByteBuffer frame) {
+        if (!frame.hasRemaining()) {
+            return ServerPool.NO_KEY;
+        }
+        int len = BinaryCodec.getInt(frame);
+        int from = frame.position();
+        if (len == 0 || len > frame.remaining()) {
+            return ServerPool.NO_KEY;
+        }
+        frame.position(from + len);
+        return ConsistentHashPool.hash(frame, from, from + len);
+    }
+
+    // Sends PING over a blocking control connection; only the health checker writes after OK, so no lock is needed.
+    // A dead connection is left for the reader thread to notice.
+    private static Runnable pinger(Socket s, byte[] ping) {
+        return () -> {
+            try {
+                OutputStream out = s.getOutputStream();
+                out.write(ping);
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        };
+    }
+
+    // Pushes INVALIDATE over a blocking lookup connection; writes are serialized with the handler's replies on out.
+    // A dead connection is left for the handler to notice, and its leases lapse.
+    private static IntConsumer invalidator(OutputStream out, boolean binary) {
+        return serverPort -> {
+            try {
+                synchronized (out) {
+                    if (binary) {
+                        ByteBuffer b = ByteBuffer.allocate(16);
+                        int start = BinaryCodec.begin(b, BinaryCodec.INVALIDATE, 0);
+                        BinaryCodec.putVarint(b, serverPort);
+                        BinaryCodec.end(b, start);
+                        BinaryCodec.write(out, b);
+                    } else {
+                        out.write(("INVALIDATE " + serverPort + "\n").getBytes(StandardCharsets.US_ASCII));
+                        out.flush();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        };
+    }
+
+    // Adds a server with its advertised number of request slots to its strategy's pool; the socket is its control connection
+    ServerInfo register(JoinRequest join, Socket s) {
+        ServerInfo info = new ServerInfo(join.port, join.strategy, s, join.capacity,
+                new CircuitBreaker(failureThreshold, breakerBackoffMillis, breakerMaxBackoffMillis),
+                new PhiAccrualDetector(heartbeatMillis > 0 ? heartbeatMillis : 1000));
+        servers.put(info.port, info);
+        pools.get(info.strategy).add(info);
+        Log.info("Registered server on port {} with strategy {} and {} slot(s)", info.port, info.strategy, info.capacity);
+        drain(info.strategy);
+        invalidate(info.strategy, 0);
+        return info;
+    }
+
+    // Claims up to slots free slots of the strategy's servers at once, for a client to spend over ttlMillis without
+    // further lookups; holder receives INVALIDATE pushes while the lease is live. Slots queued clients are waiting for
+    // are left to them. In a cluster, a lease that finds no local slot asks the peer with the most free slots for all
+    // of them at once. When nothing is free anywhere the lease waits in the queue like a lookup and comes back with
+    // one slot, or completes with null on timeout or overflow.
+    CompletableFuture<Lease> leaseAsync(Strategy strategy, int slots, long ttlMillis, IntConsumer holder) {
+        int wanted = Math.max(1, Math.min(slots, MAX_LEASE_SLOTS));
+        long ttl = Math.max(1, Math.min(ttlMillis, MAX_LEASE_MILLIS));
+        List<ServerInfo> claimed = new ArrayList<>(wanted);
+        WaitQueue queue = queues.get(strategy);
+        while (claimed.size() < wanted && !queue.hasWaiters()) {
+            ServerInfo s = selectServer(strategy);
+            if (s == null) {
+                break;
+            }
+            claimed.add(s);
+        }
+        if (!claimed.isEmpty()) {
+            return CompletableFuture.completedFuture(grant(strategy, claimed, ttl, holder));
+        }
+        if (cluster != null && !queue.hasWaiters()) {
+            return cluster.forward(strategy, ServerPool.NO_KEY, wanted).thenCompose(remote -> !remote.isEmpty()
+                    ? CompletableFuture.completedFuture(grant(strategy, remote, ttl, holder))
+                    : assignAsync(strategy).thenApply(s -> s != null ? grant(strategy, List.of(s), ttl, holder) : null));
+        }
+        return assignAsync(strategy).thenApply(s -> s != null ? grant(strategy, List.of(s), ttl, holder) : null);
+    }
+
+    private Lease grant(Strategy strategy, List<ServerInfo> claimed, long ttlMillis, IntConsumer holder) {
+        Lease lease = new Lease(leaseIds.incrementAndGet(), strategy, claimed, ttlMillis, holder);
+        leases.put(lease.id, lease);
+        leasesGranted.increment();
+        leasedSlots.add(claimed.size());
+        Log.debug("Leased {} {} slot(s) for {} ms", claimed.size(), strategy, ttlMillis);
+        return lease;
+    }
+
+    // Gives back every slot of a lease whose holder left before it received the lease
+    void abandon(Lease lease) {
+        if (endLease(lease.id) != null) {
+            for (int i = 0; i < lease.servers.length; i++) {
+                release(lease.servers[i], lease.slots[i]);
+            }
+        }
+    }
+
+    // Ends a lease; the caller then returns its unused slots. Null if it already lapsed, in which case they were reclaimed
+    Lease endLease(long id) {
+        return leases.remove(id);
+    }
+
+    // Gives back slots of an ended lease that the client never used, at most as many as the lease claimed there
+    void returnSlots(Lease lease, int serverPort, int unused) {
+        for (int i = 0; i < lease.servers.length; i++) {
+            if (lease.servers[i].port == serverPort) {
+                release(lease.servers[i], Math.min(unused, lease.slots[i]));
+                return;
+            }
+        }
+    }
+
+    private void release(ServerInfo srv, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (srv.owner != 0) { // claimed through another balancer of the cluster
+            for (int i = 0; i < count; i++) {
+                cluster.release(srv);
+            }
+            returnedSlots.add(count);
+            return;
+        }
+        ServerPool pool = pools.get(srv.strategy);
+        for (int i = 0; i < count; i++) {
+            pool.release(srv);
+        }
+        returnedSlots.add(count);
+        drain(srv.strategy);
+    }
+
+    // Reclaims leases whose holder never returned them, a full ttl after they expired. The holder may have used some
+    // of the slots, which their servers already freed, so this errs towards briefly over-admitting rather than leaking.
+    private void expireLeases() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leases.values()) {
+            if (now > lease.expiresAt + lease.ttlMillis && leases.remove(lease.id, lease)) { // never returned
+                expiredLeases.increment();
+                for (int i = 0; i < lease.servers.length; i++) {
+                    release(lease.servers[i], lease.slots[i]);
+                }
+            }
+        }
+    }
+
+    // Tells lease holders that membership changed: serverPort 0 when a server joined or came back, otherwise the
+    // server that left or was ejected, pushed only to holders with slots on it
+    private void invalidate(Strategy strategy, int serverPort) {
+        Set<IntConsumer> told = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Lease lease : leases.values()) {
+            if (lease.strategy == strategy && (serverPort == 0 || lease.holds(serverPort)) && told.add(lease.holder)) {
+                lease.holder.accept(serverPort);
+            }
+        }
+    }
+
+    // Starts the lease a "LEASE <type> <slots> <ttlMillis>" line asks for; a malformed line gets no lease
+    CompletableFuture<Lease> leaseLine(String msg, IntConsumer holder) {
+        String[] parts = msg.trim().split(" +");
+        try {
+            return leaseAsync(Strategy.forRequestType(parts[1].toLowerCase()), Integer.parseInt(parts[2]),
+                    Long.parseLong(parts[3]), holder);
+        } catch (RuntimeException e) {
+            Log.warn("Ignoring malformed lease request: {}", msg);
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // Applies a "RETURN <leaseId> [<port>:<unused> ...]" line
+    void returnLine(String msg) {
+        String[] parts = msg.trim().split(" +");
+        try {
+            Lease lease = endLease(Long.parseLong(parts[1]));
+            for (int i = 2; i < parts.length && lease != null; i++) {
+                int colon = parts[i].indexOf(':');
+                returnSlots(lease, Integer.parseInt(parts[i].substring(0, colon)), Integer.parseInt(parts[i].substring(colon + 1)));
+            }
+        } catch (RuntimeException e) {
+            Log.warn("Ignoring malformed lease return: {}", msg);
+        }
+    }
+
+    // Starts the lease a LEASE frame positioned after its id asks for
+    CompletableFuture<Lease> leaseFrame(ByteBuffer frame, IntConsumer holder) {
+        return leaseAsync(Strategy.of(frame.get()), BinaryCodec.getInt(frame), BinaryCodec.getVarint(frame), holder);
+    }
+
+    // Applies a RETURN frame positioned after its id
+    void returnFrame(ByteBuffer frame) {
+        Lease lease = endLease(BinaryCodec.getVarint(frame));
+        int count = BinaryCodec.getInt(frame);
+        for (int i = 0; i < count && lease != null; i++) {
+            returnSlots(lease, BinaryCodec.getInt(frame), BinaryCodec.getInt(frame));
+        }
+    }
+
+    // Appends the LEASED frame for a granted lease, or NO_SERVER
+    static void encodeLease(ByteBuffer reply, long requestId, Lease lease) {
+        if (lease != null) {
+            lease.encode(reply, requestId);
+        } else {
+            BinaryCodec.end(reply, BinaryCodec.begin(reply, BinaryCodec.NO_SERVER, requestId));
+        }
+    }
+
+    // Picks a server for the strategy and claims one of its slots, waiting in the strategy's queue if all are busy;
+    // returns null if none frees up before the queue timeout
+    ServerInfo assign(Strategy chosenStrategy) {
+        return assign(chosenStrategy, ServerPool.NO_KEY);
+    }
+
+    // Like assign, for a request whose routing key (the hashed path) a consistent-hash pool keeps on the same server
+    ServerInfo assign(Strategy chosenStrategy, long routingKey) {
+        return assignAsync(chosenStrategy, routingKey).join();
+    }
+
+    // Non-blocking form of assign for the event loops; the future completes with null on timeout or overflow
+    CompletableFuture<ServerInfo> assignAsync(Strategy chosenStrategy) {
+        return assignAsync(chosenStrategy, ServerPool.NO_KEY);
+    }
+
+    // assignAsync with a routing key; a request that has to queue loses its key, since whichever server frees up
+    // first serves the oldest waiter. In a cluster, a request that finds every local slot busy is first offered to
+    // the peer balancer with the most free slots, and only queues here if none has room.
+    CompletableFuture<ServerInfo> assignAsync(Strategy chosenStrategy, long routingKey) {
+        long start = System.nanoTime();
+        requests.increment();
+        WaitQueue queue = queues.get(chosenStrategy);
+        CompletableFuture<ServerInfo> result;
+        boolean waiters = queue.hasWaiters();
+        ServerInfo selected = waiters ? null : selectServer(chosenStrategy, routingKey); // never overtake waiting clients
+        if (selected != null) {
+            result = CompletableFuture.completedFuture(selected);
+        } else if (cluster != null && !waiters) {
+            result = forward(chosenStrategy, routingKey, System.currentTimeMillis() + queue.timeoutMillis());
+        } else {
+            result = enqueue(chosenStrategy);
+        }
+        return result.thenApply(srv -> {
+            if (srv != null) {
+                assignMicros.recordMicrosSince(start);
+                Log.debug("Assigned client to server on port {} ({})", srv.port, chosenStrategy);
+            } else {
+                noServer.increment();
+                Log.debug("No available server for client request ({}).", chosenStrategy);
+            }
+            return srv;
+        });
+    }
+
+    // Offers a request to the cluster, queueing it here if none of the peers has room. A balancer without servers of
+    // its own for the strategy would never hand a queued request anything, so it keeps asking the peers instead until
+    // the queue timeout.
+    private CompletableFuture<ServerInfo> forward(Strategy strategy, long routingKey, long deadline) {
+        return cluster.forward(strategy, routingKey).thenCompose(s -> {
+            if (s != null) {
+                return CompletableFuture.completedFuture(s);
+            }
+            if (pools.get(strategy).size() > 0) {
+                return enqueue(strategy);
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(FORWARD_RETRY_MILLIS, TimeUnit.MILLISECONDS))
+                    .thenCompose(x -> forward(strategy, routingKey, deadline));
+        });
+    }
+
+    private CompletableFuture<ServerInfo> enqueue(Strategy strategy) {
+        CompletableFuture<ServerInfo> waiting = queues.get(strategy).enqueue();
+        drain(strategy);
+        return waiting;
+    }
+
+    // Claims a slot of one of this balancer's own servers for a lookup a peer forwarded; null if none is free or
+    // local clients are already waiting for one
+    ServerInfo assignLocal(Strategy strategy, long routingKey) {
+        return queues.get(strategy).hasWaiters() ? null : selectServer(strategy, routingKey);
+    }
+
+    // The servers registered with this balancer, whose state it gossips to the cluster
+    Collection<ServerInfo> localServers() {
+        return servers.values();
+    }
+
+    ServerInfo localServer(int serverPort) {
+        return servers.get(serverPort);
+    }
+
+    // Hands free servers to waiting clients, oldest first
+    private void drain(Strategy strategy) {
+        WaitQueue queue = queues.get(strategy);
+        ServerPool pool = pools.get(strategy);
+        while (queue.hasWaiters()) {
+            ServerInfo s = selectServer(strategy);
+            if (s == null) {
+                return;
+            }
+            if (!queue.handOff(s)) {
+                pool.release(s); // every waiter timed out meanwhile
+                return;
+            }
+        }
+    }
+
+    // Sets the per-strategy wait queue bound and how long a client may wait for a server; capacity 0 disables queueing
+    public void setQueue(int capacity, long timeoutMillis) {
+        for (Strategy st : Strategy.values()) {
+            queues.put(st, new WaitQueue(capacity, timeoutMillis, metrics.histogram(st + ".queue_wait_us")));
+        }
+    }
+
+    // Queue length and wait-time statistics per strategy
+    public String queueStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Strategy, WaitQueue> e : queues.entrySet()) {
+            sb.append(e.getKey()).append(": ").append(e.getValue().stats()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    // Selects a server based on the request strategy (static: round-robin, dynamic: least-connections)
+    ServerInfo selectServer(Strategy strategy) {
+        return selectServer(strategy, ServerPool.NO_KEY);
+    }
+
+    // Selects a server for a request that may carry a routing key; pools other than consistent hashing ignore it
+    ServerInfo selectServer(Strategy strategy, long routingKey) {
+        long start = System.nanoTime();
+        ServerPool pool = pools.get(strategy);
+        ServerInfo s = routingKey == ServerPool.NO_KEY ? pool.select() : pool.select(routingKey);
+        selectNanos.record(System.nanoTime() - start);
+        return s;
     }
 
     // Listens for status updates from a registered server (FREE or GOODBYE)
@@ -140,50 +799,279 @@ public class LoadBalancer {
             String msg;
             while ((msg = in.readLine()) != null) {
                 if (msg.equals("FREE")) {
-                    srv.busy = false;
-                    srv.lastFreeTime = System.currentTimeMillis();
-                    if ("dynamic".equalsIgnoreCase(srv.strategy)) {
-                        srv.currentConnections = Math.max(0, srv.currentConnections - 1);
+                    markFree(srv);
+                } else if (msg.equals("PONG")) {
+                    srv.heartbeats.heartbeat(System.currentTimeMillis());
+                } else if (msg.equals("REJECTED")) {
+                    markRejected(srv);
+                } else if (msg.startsWith("LOAD ")) {
+                    String[] parts = msg.split(" ");
+                    try {
+                        reportLoad(srv, Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                                Integer.parseInt(parts[3]), Long.parseLong(parts[4]));
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        Log.warn("Ignoring malformed load report from server on port {}", srv.port);
                     }
-                    System.out.println("Server on port " + srv.port + " is now free.");
                 } else if (msg.equals("GOODBYE")) {
-                    synchronized (servers) {
-                        servers.remove(srv);
-                    }
-                    srv.socket.close();
-                    System.out.println("Server on port " + srv.port + " has disconnected.");
+                    unregister(srv);
                     break;
                 }
             }
         } catch (Exception e) {
-            synchronized (servers) {
-                servers.remove(srv);
+            connectionLost(srv);
+        }
+    }
+
+    // Binary counterpart of serverStatus, reading frames until GOODBYE
+    private void binaryServerStatus(ServerInfo srv, DataInputStream in, ByteBuffer frame) {
+        try {
+            while ((frame = BinaryCodec.readFrame(in, frame)) != null) {
+                byte opcode = frame.get();
+                BinaryCodec.getVarint(frame);
+                if (!onControlFrame(srv, opcode, frame)) {
+                    return;
+                }
             }
-            System.out.println("Lost connection to server on port " + srv.port + ". Removed from pool.");
+            connectionLost(srv);
+        } catch (Exception e) {
+            connectionLost(srv);
         }
     }
 
-    // Holds metadata for each registered server
-    private static class ServerInfo {
+    // Applies one binary status frame from a registered server, positioned after its id; false once it said GOODBYE
+    boolean onControlFrame(ServerInfo srv, byte opcode, ByteBuffer frame) throws IOException {
+        switch (opcode) {
+            case BinaryCodec.FREE:
+                markFree(srv);
+                return true;
+            case BinaryCodec.REJECTED:
+                markRejected(srv);
+                return true;
+            case BinaryCodec.PONG:
+                srv.heartbeats.heartbeat(System.currentTimeMillis());
+                return true;
+            case BinaryCodec.LOAD:
+                try {
+                    reportLoad(srv, BinaryCodec.getInt(frame), BinaryCodec.getInt(frame), BinaryCodec.getInt(frame),
+                            BinaryCodec.getVarint(frame));
+                } catch (RuntimeException e) {
+                    Log.warn("Ignoring malformed load report from server on port {}", srv.port);
+                }
+                return true;
+            case BinaryCodec.GOODBYE:
+                unregister(srv);
+                return false;
+            default:
+                throw new IOException("Unexpected opcode " + opcode + " from server on port " + srv.port);
+        }
+    }
 
-        int port;
-        String strategy;
-        boolean busy;
-        Socket socket;
-        long lastFreeTime;
-        int currentConnections = 0;
+    // Returns a slot to a server after it reports FREE, or after the client it was assigned to left without using it;
+    // a slot claimed through a peer balancer goes back to that peer
+    void markFree(ServerInfo srv) {
+        frees.increment();
+        if (srv.owner != 0) {
+            cluster.release(srv);
+            return;
+        }
+        srv.breaker.recordSuccess();
+        pools.get(srv.strategy).release(srv);
+        drain(srv.strategy);
+        Log.debug("Server on port {} freed a slot ({}/{} in use).", srv.port, srv.inUse.get(), srv.capacity);
+    }
+
+    // Records a "LOAD <active> <queued> <cpuPercent> <latencyEwmaMicros>" report pushed by a server
+    void reportLoad(ServerInfo srv, int active, int queued, int cpu, long latencyMicros) {
+        srv.reportedActive = active;
+        srv.reportedQueue = queued;
+        srv.cpuLoad = cpu;
+        srv.latencyEwmaMicros = latencyMicros;
+        srv.lastReportTime = System.currentTimeMillis();
+        loadReports.increment();
+    }
+
+    // Releases a server whose admission control turned the request away
+    void markRejected(ServerInfo srv) {
+        srv.rejections.incrementAndGet();
+        rejected.increment();
+        pools.get(srv.strategy).release(srv);
+        drain(srv.strategy);
+        Log.debug("Server on port {} rejected a request (overloaded).", srv.port);
+    }
 
-        ServerInfo(int p, String s, boolean b, Socket sk) {
-            port = p;
-            strategy = s;
-            busy = b;
-            socket = sk;
-            lastFreeTime = System.currentTimeMillis();
+    // Text form of a FAILED report; malformed reports are ignored
+    private void reportFailure(String port) {
+        try {
+            reportFailure(Integer.parseInt(port));
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring malformed FAILED report: {}", port);
         }
     }
 
+    // A client could not connect to the server it was assigned: give back the slot it claimed and count the failure,
+    // ejecting the server once its breaker opens
+    void reportFailure(int port) {
+        clientFailures.increment();
+        ServerInfo srv = servers.get(port);
+        if (srv == null) {
+            if (cluster != null) {
+                cluster.reportFailure(port); // assigned through a peer, which owns the server
+            }
+            return;
+        }
+        pools.get(srv.strategy).release(srv);
+        if (srv.breaker.recordFailure(System.currentTimeMillis())) {
+            eject(srv, "clients could not connect");
+        }
+        drain(srv.strategy);
+    }
+
+    // Pings every health-checked server, ejects those whose heartbeats stopped, and probes ejected ones whose backoff
+    // ran out. PINGs and probes run on their own executor, one at a time per server, so a server that stalls its
+    // socket holds up only itself; its missing PONGs then eject it like any other.
+    private void checkHealth() {
+        for (ServerInfo srv : servers.values()) {
+            Runnable pinger = srv.pinger;
+            if (pinger == null) {
+                continue; // registered without a control connection we can ping
+            }
+            offload(pinging, srv, pinger);
+            long now = System.currentTimeMillis();
+            if (srv.breaker.allowsTraffic()) {
+                if (suspected(srv, now)) {
+                    srv.breaker.trip(now);
+                    eject(srv, "missed heartbeats");
+                }
+            } else if (srv.breaker.tryHalfOpen(now)) {
+                if (suspected(srv, now) || !offload(probing, srv, () -> reinstate(srv))) {
+                    srv.breaker.probeFailed(now);
+                }
+            }
+        }
+    }
+
+    // Runs a PING or probe on the probe executor unless the previous one for the server is still in flight (the
+    // server is tracked in inFlight meanwhile); false if skipped
+    private boolean offload(Set<ServerInfo> inFlight, ServerInfo srv, Runnable task) {
+        if (!inFlight.add(srv)) {
+            return false;
+        }
+        try {
+            probes.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    inFlight.remove(srv);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) { // shutting down
+            inFlight.remove(srv);
+            return false;
+        }
+    }
+
+    // Closes the breaker of an ejected server whose listener accepts connections again, else backs off further
+    private void reinstate(ServerInfo srv) {
+        if (probe(srv.port)) {
+            srv.breaker.probeSucceeded();
+            reinstatements.increment();
+            pools.get(srv.strategy).refresh(srv);
+            drain(srv.strategy);
+            invalidate(srv.strategy, 0);
+            Log.info("Reinstated server on port {}", srv.port);
+        } else {
+            srv.breaker.probeFailed(System.currentTimeMillis());
+        }
+    }
+
+    private boolean suspected(ServerInfo srv, long now) {
+        return now - srv.heartbeats.lastHeartbeat() > heartbeatTimeoutMillis || srv.heartbeats.phi(now) > phiThreshold;
+    }
+
+    // Checks that the server's listener still accepts connections
+    private boolean probe(int serverPort) {
+        try (Socket probe = new Socket()) {
+            probe.connect(new InetSocketAddress("localhost", serverPort), (int) Math.max(100, heartbeatMillis));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void eject(ServerInfo srv, String reason) {
+        ejections.increment();
+        pools.get(srv.strategy).refresh(srv);
+        invalidate(srv.strategy, srv.port);
+        Log.warn("Ejected server on port {}: {}", srv.port, reason);
+    }
+
+    // Removes a server that said GOODBYE and closes its control connection
+    void unregister(ServerInfo srv) throws IOException {
+        servers.remove(srv.port, srv);
+        pools.get(srv.strategy).remove(srv);
+        invalidate(srv.strategy, srv.port);
+        srv.socket.close();
+        Log.info("Server on port {} has disconnected.", srv.port);
+    }
+
+    // Removes a server whose control connection failed
+    void connectionLost(ServerInfo srv) {
+        servers.remove(srv.port, srv);
+        pools.get(srv.strategy).remove(srv);
+        invalidate(srv.strategy, srv.port);
+        Log.warn("Lost connection to server on port {}. Removed from pool.", srv.port);
+    }
+
+    // Usage: LoadBalancer [port <port>] [nio [eventLoops] | platform|pooled|virtual [poolSize]] [proxy <port> [relayThreads]]
+    //                    [stats <port>] [static|dynamic=<policy>] [cluster <clusterPort> [<peer>,<peer>...]]
     public static void main(String[] args) throws IOException {
-        LoadBalancer lb = new LoadBalancer(6789);
+        int lbPort = 6789;
+        int clusterPort = 0;
+        int[] peers = new int[0];
+        int loops = 0;
+        ExecutionMode mode = ExecutionMode.PLATFORM;
+        int size = ExecutionMode.DEFAULT_POOL_SIZE;
+        int proxyPort = 0;
+        int proxyThreads = 1;
+        int statsPort = 0;
+        Map<Strategy, Policy> policies = new EnumMap<>(Strategy.class);
+        for (int i = 0; i < args.length; i++) {
+            boolean number = i + 1 < args.length && args[i + 1].matches("\\d+");
+            if ("nio".equalsIgnoreCase(args[i])) {
+                loops = number ? Integer.parseInt(args[++i]) : Runtime.getRuntime().availableProcessors();
+            } else if ("proxy".equalsIgnoreCase(args[i]) && number) {
+                proxyPort = Integer.parseInt(args[++i]);
+                if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                    proxyThreads = Integer.parseInt(args[++i]);
+                }
+            } else if ("stats".equalsIgnoreCase(args[i]) && number) {
+                statsPort = Integer.parseInt(args[++i]);
+            } else if ("port".equalsIgnoreCase(args[i]) && number) {
+                lbPort = Integer.parseInt(args[++i]);
+            } else if ("cluster".equalsIgnoreCase(args[i]) && number) {
+                clusterPort = Integer.parseInt(args[++i]);
+                if (i + 1 < args.length && args[i + 1].matches("\\d+(,\\d+)*")) {
+                    peers = Arrays.stream(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                }
+            } else if (args[i].contains("=")) {
+                String[] kv = args[i].split("=", 2);
+                policies.put(Strategy.parse(kv[0]), Policy.parse(kv[1]));
+            } else {
+                mode = ExecutionMode.parse(args[i]);
+                if (number) {
+                    size = Integer.parseInt(args[++i]);
+                }
+            }
+        }
+        LoadBalancer lb = new LoadBalancer(lbPort, loops);
+        lb.setExecutionMode(mode, size);
+        lb.setCluster(clusterPort, peers);
+        lb.setProxyPort(proxyPort, proxyThreads);
+        lb.setStatsPort(statsPort);
+        for (Map.Entry<Strategy, Policy> e : policies.entrySet()) {
+            lb.setPolicy(e.getKey(), e.getValue());
+        }
         lb.start();
     }
 }
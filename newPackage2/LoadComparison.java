@@ -0,0 +1,74 @@
+package networkProject.newPackage2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs Client.testHundredClients against an in-process load balancer and servers once per ExecutionMode
+public class LoadComparison {
+
+    private static final int BASE_PORT = 6800;
+
+    // Starts a load balancer plus static and dynamic servers in the given mode, runs the clients and tears it all down
+    static String runMode(ExecutionMode mode, int lbPort, int numClients, int serversPerStrategy, int poolSize) throws Exception {
+        LoadBalancer lb = new LoadBalancer(lbPort);
+        lb.setExecutionMode(mode, poolSize);
+        new Thread(() -> {
+            try {
+                lb.start();
+            } catch (Exception ignored) {
+                // stop() closes the listening socket
+            }
+        }).start();
+        Thread.sleep(300);
+
+        List<Server> servers = new ArrayList<>();
+        for (int i = 0; i < serversPerStrategy * 2; i++) {
+            Server server = new Server(lbPort + 1 + i, i % 2 == 0 ? "static" : "dynamic", lbPort);
+            server.setExecutionMode(mode, poolSize);
+            servers.add(server);
+            new Thread(() -> {
+                try {
+                    server.start();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }).start();
+        }
+        Thread.sleep(500);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        long start = System.nanoTime();
+        int succeeded = Client.testHundredClients(numClients, lbPort);
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        int peakThreads = threads.getPeakThreadCount();
+
+        for (Server server : servers) {
+            server.stop();
+        }
+        lb.stop();
+        Thread.sleep(300);
+        return String.format("%-8s clients=%d succeeded=%d time=%dms peakThreads=%d",
+                mode, numClients, succeeded, elapsedMs, peakThreads);
+    }
+
+    // Usage: LoadComparison [numClients [serversPerStrategy [poolSize]]]
+    public static void main(String[] args) throws Exception {
+        int numClients = args.length >= 1 ? Integer.parseInt(args[0]) : 100;
+        int serversPerStrategy = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+        int poolSize = args.length >= 3 ? Integer.parseInt(args[2]) : ExecutionMode.DEFAULT_POOL_SIZE;
+
+        List<String> results = new ArrayList<>();
+        ExecutionMode[] modes = ExecutionMode.values();
+        for (int i = 0; i < modes.length; i++) {
+            results.add(runMode(modes[i], BASE_PORT + i * 100, numClients, serversPerStrategy, poolSize));
+        }
+        System.out.println("Execution mode comparison:");
+        for (String r : results) {
+            System.out.println(r);
+        }
+        System.exit(0);
+    }
+}
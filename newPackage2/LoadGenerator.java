@@ -0,0 +1,383 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a weighted mix of client requests through the load balancer and reports throughput, error rates and
+// p50/p99/p999 latency per request type. Closed-loop mode keeps a fixed number of requests in flight; open-loop
+// mode issues requests on a fixed schedule and measures each one from its scheduled start, so a stalled system
+// is charged for the requests it delayed (no coordinated omission). Requests before the warmup ends are not recorded.
+public class LoadGenerator {
+
+    private final int lbPort;
+    private int[] lbPorts; // balancers of a cluster to spread clients over; null uses lbPort only
+    private final List<RequestSpec> mix = new ArrayList<>();
+    private double rate = 0; // requests per second; > 0 selects open-loop mode
+    private int concurrency = 16; // closed-loop requests in flight
+    private long durationMillis = 10_000; // 0 = until requestCount requests were issued
+    private long warmupMillis = 2_000;
+    private long requestCount = 0; // 0 = unbounded, run for the duration
+    private long drainMillis = 60_000; // how long to wait for requests still in flight when the run ends
+    private ExecutionMode executionMode = ExecutionMode.VIRTUAL;
+    private boolean keepAlive;
+
+    public LoadGenerator(int lbPort) {
+        this.lbPort = lbPort;
+    }
+
+    // Spreads the generated clients over the balancers of a cluster
+    public void setLoadBalancers(int... ports) {
+        this.lbPorts = ports;
+    }
+
+    // Adds one request type to the mix; types are picked in proportion to their weights, smoothly interleaved
+    public void addRequest(int choice, String type, int weight) {
+        mix.add(new RequestSpec(choice, type, weight));
+    }
+
+    // Parses a mix such as "40*1:testDir,30*2:testFile.txt,20*3:prime:2,10*4:10" ("[weight*]choice:type", weight 1 if omitted)
+    public void setMix(String spec) {
+        mix.clear();
+        for (String item : spec.split(",")) {
+            item = item.trim();
+            int weight = 1;
+            int star = item.indexOf('*');
+            if (star > 0) {
+                weight = Integer.parseInt(item.substring(0, star));
+                item = item.substring(star + 1);
+            }
+            int colon = item.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected choice:type in " + item);
+            }
+            addRequest(Integer.parseInt(item.substring(0, colon)), item.substring(colon + 1), weight);
+        }
+    }
+
+    // Open loop: start requestsPerSecond requests every second regardless of how fast they complete
+    public void setOpenLoop(double requestsPerSecond) {
+        this.rate = requestsPerSecond;
+    }
+
+    // Closed loop: keep this many requests in flight, each worker sending its next request when the last one completes
+    public void setClosedLoop(int concurrency) {
+        this.rate = 0;
+        this.concurrency = concurrency;
+    }
+
+    public void setDuration(long durationMillis, long warmupMillis) {
+        this.durationMillis = durationMillis;
+        this.warmupMillis = warmupMillis;
+    }
+
+    // Stops after this many requests (warmup included); 0 runs for the whole duration
+    public void setRequestCount(long requestCount) {
+        this.requestCount = requestCount;
+    }
+
+    public void setDrainTimeout(long drainMillis) {
+        this.drainMillis = drainMillis;
+    }
+
+    // Threads that carry the requests; virtual threads let open-loop runs keep thousands of requests in flight
+    public void setExecutionMode(ExecutionMode mode) {
+        this.executionMode = mode;
+    }
+
+    // Sends requests over persistent multiplexed ClientSessions instead of a new connection per request
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    // Runs the load and blocks until every request completed or the drain timeout passed
+    public Result run() throws InterruptedException {
+        if (mix.isEmpty()) {
+            throw new IllegalStateException("No requests in the mix");
+        }
+        for (RequestSpec spec : mix) {
+            spec.reset();
+        }
+        int workers = rate > 0 ? 16 : concurrency;
+        ClientSession[] sessions = new ClientSession[keepAlive ? workers : 0];
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new ClientSession(lbPorts != null ? lbPorts[i % lbPorts.length] : lbPort);
+            if (lbPorts != null) {
+                sessions[i].setLoadBalancers(lbPorts);
+            }
+        }
+        ExecutorService executor = executionMode.newExecutor("loadgen", rate > 0 ? ExecutionMode.DEFAULT_POOL_SIZE : concurrency);
+        LatencyHistogram all = new LatencyHistogram();
+        AtomicLong issued = new AtomicLong();
+        LongAdder completed = new LongAdder();
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        long end = durationMillis > 0 ? measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis) : Long.MAX_VALUE;
+        Run run = new Run(sessions, all, completed, measureFrom);
+
+        if (rate > 0) {
+            long interval = (long) (1e9 / rate);
+            for (long k = 0; requestCount == 0 || k < requestCount; k++) {
+                long intended = start + k * interval;
+                if (intended >= end) {
+                    break;
+                }
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                RequestSpec spec = pick();
+                int session = (int) (k % workers);
+                issued.incrementAndGet();
+                executor.execute(() -> run.send(spec, intended, session));
+            }
+        } else {
+            for (int w = 0; w < concurrency; w++) {
+                int session = w;
+                executor.execute(() -> {
+                    while (System.nanoTime() < end) {
+                        if (issued.incrementAndGet() > requestCount && requestCount > 0) {
+                            return;
+                        }
+                        run.send(pick(), System.nanoTime(), session);
+                    }
+                });
+            }
+        }
+
+        executor.shutdown();
+        long runEnd = end == Long.MAX_VALUE ? System.nanoTime() : end;
+        boolean drained = executor.awaitTermination(Math.max(0, runEnd - System.nanoTime()) / 1_000_000 + drainMillis, TimeUnit.MILLISECONDS);
+        if (!drained) {
+            executor.shutdownNow();
+        }
+        long elapsed = Math.min(System.nanoTime(), end) - measureFrom;
+        for (ClientSession s : sessions) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+        long incomplete = Math.max(0, Math.min(issued.get(), requestCount > 0 ? requestCount : Long.MAX_VALUE) - completed.sum());
+        return new Result(mix, all, elapsed, incomplete, rate > 0 ? "open-loop " + rate + "/s" : "closed-loop x" + concurrency);
+    }
+
+    // Smooth weighted round-robin: the mix is interleaved evenly rather than sent in blocks
+    private synchronized RequestSpec pick() {
+        int total = 0;
+        RequestSpec best = null;
+        for (RequestSpec spec : mix) {
+            spec.current += spec.weight;
+            total += spec.weight;
+            if (best == null || spec.current > best.current) {
+                best = spec;
+            }
+        }
+        best.current -= total;
+        return best;
+    }
+
+    // State shared by the requests of one run
+    private class Run {
+
+        private final ClientSession[] sessions;
+        private final LatencyHistogram all;
+        private final LongAdder completed;
+        private final long measureFrom;
+
+        Run(ClientSession[] sessions, LatencyHistogram all, LongAdder completed, long measureFrom) {
+            this.sessions = sessions;
+            this.all = all;
+            this.completed = completed;
+            this.measureFrom = measureFrom;
+        }
+
+        // Sends one request and records its latency from the intended start time
+        void send(RequestSpec spec, long intendedNanos, int session) {
+            boolean measured = intendedNanos >= measureFrom;
+            try {
+                if (keepAlive) {
+                    String response = sessions[session].request(spec.choice, spec.type);
+                    if (response.startsWith("REJECTED")) {
+                        throw new IOException(response);
+                    }
+                } else {
+                    Client client = new Client(spec.choice, spec.type, lbPort);
+                    if (lbPorts != null) {
+                        client.setLoadBalancers(lbPorts);
+                    }
+                    client.runRequest();
+                }
+                if (measured) {
+                    long micros = (System.nanoTime() - intendedNanos) / 1000;
+                    spec.latency.record(micros);
+                    all.record(micros);
+                    spec.ok.increment();
+                }
+            } catch (Exception e) {
+                if (measured) {
+                    spec.errors.increment();
+                    spec.lastError = e.getMessage();
+                }
+                Log.debug("Client error: {}", e.getMessage());
+            } finally {
+                completed.increment();
+            }
+        }
+    }
+
+    // One entry of the request mix with its own latency histogram and counters
+    private static class RequestSpec {
+
+        final int choice;
+        final String type;
+        final int weight;
+        int current; // smooth weighted round-robin state, guarded by the generator
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        volatile String lastError;
+
+        RequestSpec(int choice, String type, int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weight must be positive: " + weight);
+            }
+            this.choice = choice;
+            this.type = type;
+            this.weight = weight;
+        }
+
+        void reset() {
+            current = 0;
+            latency.reset();
+            ok.reset();
+            errors.reset();
+            lastError = null;
+        }
+
+        String name() {
+            return choice + ":" + type;
+        }
+    }
+
+    // Outcome of a run: a per-type table of throughput, errors and latency percentiles
+    public static class Result {
+
+        private final long succeeded;
+        private final long failed;
+        private final String report;
+
+        Result(List<RequestSpec> mix, LatencyHistogram all, long elapsedNanos, long incomplete, String mode) {
+            double seconds = Math.max(elapsedNanos, 1) / 1e9;
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%s, measured %.1fs%n", mode, seconds));
+            sb.append(String.format(Locale.ROOT, "%-24s %9s %7s %7s %9s %9s %9s %9s %9s%n",
+                    "request", "ok", "errors", "err%", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+            long ok = 0;
+            long errors = 0;
+            for (RequestSpec spec : mix) {
+                long o = spec.ok.sum();
+                long e = spec.errors.sum();
+                ok += o;
+                errors += e;
+                row(sb, spec.name(), o, e, seconds, spec.latency);
+            }
+            row(sb, "all", ok, errors, seconds, all);
+            if (incomplete > 0) {
+                sb.append(incomplete).append(" request(s) still in flight when the drain timeout passed\n");
+            }
+            for (RequestSpec spec : mix) {
+                if (spec.lastError != null) {
+                    sb.append(spec.name()).append(" last error: ").append(spec.lastError).append('\n');
+                }
+            }
+            this.succeeded = ok;
+            this.failed = errors + incomplete;
+            this.report = sb.toString();
+        }
+
+        private static void row(StringBuilder sb, String name, long ok, long errors, double seconds, LatencyHistogram h) {
+            long total = ok + errors;
+            sb.append(String.format(Locale.ROOT, "%-24s %9d %7d %6.2f%% %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                    name, ok, errors, total == 0 ? 0.0 : 100.0 * errors / total, ok / seconds,
+                    h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+        }
+
+        public long succeeded() {
+            return succeeded;
+        }
+
+        public long failed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return report;
+        }
+    }
+
+    // Usage: LoadGenerator [lb=6789[,6790...]] [mix=...] [rate=<req/s> | concurrency=<n>] [duration=<s>] [warmup=<s>]
+    //                      [requests=<n>] [mode=platform|pooled|virtual] [keepalive]
+    public static void main(String[] args) throws InterruptedException {
+        if (System.getProperty("log.level") == null) {
+            Log.setLevel(Log.Level.WARN); // per-response output would swamp the report
+        }
+        int[] lb = {6789};
+        for (String arg : args) {
+            if (arg.startsWith("lb=")) {
+                lb = Arrays.stream(arg.substring(3).split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+        }
+        LoadGenerator gen = new LoadGenerator(lb[0]);
+        if (lb.length > 1) {
+            gen.setLoadBalancers(lb);
+        }
+        gen.setMix("1:testDir,2:testFile.txt,3:5,4:10");
+        long duration = 10_000;
+        long warmup = 2_000;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            String value = kv.length > 1 ? kv[1] : "";
+            switch (kv[0].toLowerCase()) {
+                case "mix":
+                    gen.setMix(value);
+                    break;
+                case "rate":
+                    gen.setOpenLoop(Double.parseDouble(value));
+                    break;
+                case "concurrency":
+                    gen.setClosedLoop(Integer.parseInt(value));
+                    break;
+                case "duration":
+                    duration = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "warmup":
+                    warmup = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "requests":
+                    gen.setRequestCount(Long.parseLong(value));
+                    break;
+                case "mode":
+                    gen.setExecutionMode(ExecutionMode.parse(value));
+                    break;
+                case "keepalive":
+                    gen.setKeepAlive(true);
+                    break;
+                case "lb":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        gen.setDuration(duration, warmup);
+        System.out.print(gen.run());
+    }
+}
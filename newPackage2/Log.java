@@ -0,0 +1,197 @@
+package networkProject.newPackage2;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Asynchronous, level-gated console logger. A disabled level costs one comparison; an enabled one only enqueues
+// the template and its arguments, and a single daemon thread formats "{}" placeholders and prints in batches.
+// The level comes from -Dlog.level=error|warn|info|debug (default info); per-request messages are logged at debug.
+final class Log {
+
+    enum Level {
+        ERROR, WARN, INFO, DEBUG;
+
+        static Level parse(String s, Level fallback) {
+            for (Level l : values()) {
+                if (l.name().equalsIgnoreCase(s)) {
+                    return l;
+                }
+            }
+            return fallback;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level level = Level.parse(System.getProperty("log.level"), Level.INFO);
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    static void setLevel(Level l) {
+        level = l;
+    }
+
+    static boolean isDebug() {
+        return level == Level.DEBUG;
+    }
+
+    static void debug(String msg) {
+        if (level == Level.DEBUG) {
+            enqueue(Level.DEBUG, msg, null, null, null, null);
+        }
+    }
+
+    static void debug(String msg, Object a) {
+        if (level == Level.DEBUG) {
+            enqueue(Level.DEBUG, msg, a, null, null, null);
+        }
+    }
+
+    static void debug(String msg, Object a, Object b) {
+        if (level == Level.DEBUG) {
+            enqueue(Level.DEBUG, msg, a, b, null, null);
+        }
+    }
+
+    static void debug(String msg, Object a, Object b, Object c) {
+        if (level == Level.DEBUG) {
+            enqueue(Level.DEBUG, msg, a, b, c, null);
+        }
+    }
+
+    static void info(String msg) {
+        if (level.compareTo(Level.INFO) >= 0) {
+            enqueue(Level.INFO, msg, null, null, null, null);
+        }
+    }
+
+    static void info(String msg, Object a) {
+        if (level.compareTo(Level.INFO) >= 0) {
+            enqueue(Level.INFO, msg, a, null, null, null);
+        }
+    }
+
+    static void info(String msg, Object a, Object b) {
+        if (level.compareTo(Level.INFO) >= 0) {
+            enqueue(Level.INFO, msg, a, b, null, null);
+        }
+    }
+
+    static void info(String msg, Object a, Object b, Object c) {
+        if (level.compareTo(Level.INFO) >= 0) {
+            enqueue(Level.INFO, msg, a, b, c, null);
+        }
+    }
+
+    static void warn(String msg, Object a) {
+        if (level.compareTo(Level.WARN) >= 0) {
+            enqueue(Level.WARN, msg, a, null, null, null);
+        }
+    }
+
+    static void warn(String msg, Object a, Object b) {
+        if (level.compareTo(Level.WARN) >= 0) {
+            enqueue(Level.WARN, msg, a, b, null, null);
+        }
+    }
+
+    // Errors are always logged, with the stack trace when one is given
+    static void error(String msg, Throwable t) {
+        enqueue(Level.ERROR, msg, null, null, null, t);
+    }
+
+    private static void enqueue(Level l, String msg, Object a, Object b, Object c, Throwable t) {
+        if (!queue.offer(new Entry(l, msg, a, b, c, t))) {
+            dropped.increment(); // never block a request thread on the console
+        }
+    }
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            write(batch, sb);
+        }
+    }
+
+    // Prints whatever is still queued; runs at JVM shutdown so the last messages are not lost
+    private static void flush() {
+        List<Entry> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        write(batch, new StringBuilder());
+    }
+
+    private static void write(List<Entry> batch, StringBuilder sb) {
+        long lost = dropped.sumThenReset();
+        if (lost > 0) {
+            sb.append("WARN ").append(lost).append(" log message(s) dropped, logger queue full\n");
+        }
+        for (Entry e : batch) {
+            if (e.level != Level.INFO && e.level != Level.DEBUG) {
+                sb.append(e.level).append(' ');
+            }
+            format(sb, e);
+            sb.append('\n');
+        }
+        System.out.print(sb);
+        System.out.flush();
+        sb.setLength(0);
+        batch.clear();
+    }
+
+    private static void format(StringBuilder sb, Entry e) {
+        Object[] args = {e.a, e.b, e.c};
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < args.length && (at = e.msg.indexOf("{}", from)) >= 0) {
+            sb.append(e.msg, from, at).append(args[arg++]);
+            from = at + 2;
+        }
+        sb.append(e.msg, from, e.msg.length());
+        if (e.error != null) {
+            StringWriter trace = new StringWriter();
+            e.error.printStackTrace(new PrintWriter(trace));
+            sb.append(": ").append(trace.toString().trim());
+        }
+    }
+
+    private static final class Entry {
+
+        final Level level;
+        final String msg;
+        final Object a;
+        final Object b;
+        final Object c;
+        final Throwable error;
+
+        Entry(Level level, String msg, Object a, Object b, Object c, Throwable error) {
+            this.level = level;
+            this.msg = msg;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.error = error;
+        }
+    }
+}
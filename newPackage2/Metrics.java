@@ -0,0 +1,50 @@
+package networkProject.newPackage2;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// Named counters, gauges and latency histograms of one component. Hot paths keep a reference to the instrument
+// they update, so recording never touches the registry; render() produces the text served by StatsEndpoint.
+class Metrics {
+
+    private final String prefix;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    Metrics(String prefix) {
+        this.prefix = prefix + ".";
+    }
+
+    LongAdder counter(String name) {
+        return counters.computeIfAbsent(prefix + name, k -> new LongAdder());
+    }
+
+    // A value read on demand when the metrics are rendered, such as a queue length
+    void gauge(String name, LongSupplier value) {
+        gauges.put(prefix + name, value);
+    }
+
+    LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(prefix + name, k -> new LatencyHistogram());
+    }
+
+    // One "name value" line per counter and gauge, then one summary line per histogram
+    String render() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            sb.append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+            if (e.getValue().count() > 0) {
+                sb.append(e.getKey()).append(' ').append(e.getValue().summary()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,571 @@
+package networkProject.newPackage2;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.IntConsumer;
+
+// A single selector thread that speaks the load balancer protocols, text lines or binary frames, on non-blocking channels
+class NioEventLoop extends Thread {
+
+    private static final int BUFFER_SIZE = 512;
+    private static final byte[] JOIN = bytes("JOIN");
+    private static final byte[] REQUEST = bytes("REQUEST");
+    private static final byte[] FREE = bytes("FREE");
+    private static final byte[] GOODBYE = bytes("GOODBYE");
+    private static final byte[] REJECTED = bytes("REJECTED");
+    private static final byte[] LOAD = bytes("LOAD");
+    private static final byte[] PONG = bytes("PONG");
+    private static final byte[] FAILED = bytes("FAILED");
+    private static final byte[] LEASE = bytes("LEASE");
+    private static final byte[] RETURN = bytes("RETURN");
+    private static final int LEASED_ROOM = 256; // largest LEASED frame: MAX_LEASE_SLOTS servers
+    private static final byte[] PING = bytes("PING\n");
+    private static final byte[] OK = bytes("OK\n");
+    private static final byte[] NO_SERVER = bytes("NO_SERVER\n");
+    private static final byte[][] DYNAMIC_TYPES = {bytes("stream"), bytes("compute"), bytes("computation")};
+
+    private final LoadBalancer lb;
+    private final Selector selector;
+    private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>(); // recycled direct buffers, loop thread only
+    private volatile boolean running = true;
+
+    NioEventLoop(LoadBalancer lb, int id) throws IOException {
+        super("lb-event-loop-" + id);
+        this.lb = lb;
+        this.selector = Selector.open();
+        setDaemon(true);
+    }
+
+    // Hands an accepted channel to this loop; called from the acceptor thread
+    void register(SocketChannel ch) {
+        pending.add(ch);
+        selector.wakeup();
+    }
+
+    // Runs a task on the loop thread; used to complete replies for requests that waited in the queue
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Stops the loop and closes every channel it owns
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                SocketChannel ch;
+                while ((ch = pending.poll()) != null) {
+                    ch.configureBlocking(false);
+                    ch.register(selector, SelectionKey.OP_READ, new Connection(ch, buffer(), buffer()));
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection c = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(key, c);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key, c);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        fail(key, c, e);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Event loop error: {}", e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            close(key, (Connection) key.attachment());
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Reads available bytes and processes every complete line in the buffer. A connection parked in the wait queue is
+    // still read, only so that its EOF releases it; what it sends meanwhile stays buffered for resume.
+    private void read(SelectionKey key, Connection c) throws IOException {
+        int n = c.channel.read(c.in);
+        if (n < 0) {
+            if (c.server != null) {
+                lb.connectionLost(c.server);
+            }
+            close(key, c);
+            return;
+        }
+        if (c.waiting) {
+            if (!c.in.hasRemaining()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // full of pipelined requests: wait for resume
+            }
+            return;
+        }
+        process(key, c);
+    }
+
+    // Decides the connection's protocol from its first byte, then handles whatever complete messages are buffered
+    private void process(SelectionKey key, Connection c) throws IOException {
+        if (!c.negotiated) {
+            if (c.in.position() == 0) {
+                return;
+            }
+            c.negotiated = true;
+            if (c.in.get(0) == BinaryCodec.MAGIC) {
+                c.binary = true;
+                c.in.flip().position(1);
+                c.in.compact();
+            }
+        }
+        if (c.binary) {
+            processFrames(key, c);
+        } else {
+            processLines(key, c);
+        }
+    }
+
+    // Handles buffered frames in order, stopping at a REQUEST that has to wait for a server
+    private void processFrames(SelectionKey key, Connection c) throws IOException {
+        int start = 0;
+        int end = c.in.position();
+        int size;
+        while (!c.waiting && (size = BinaryCodec.frameSize(c.in, start, end)) >= 0) {
+            c.in.limit(start + size).position(start + 2); // decode in place, bounded to this frame
+            onFrame(key, c);
+            if (!key.isValid()) {
+                return;
+            }
+            c.in.limit(c.in.capacity());
+            start += size;
+        }
+        if (start == 0 && end == c.in.capacity()) {
+            throw new IOException("Frame too large");
+        }
+        c.in.limit(end).position(start);
+        c.in.compact();
+    }
+
+    // Handles buffered lines in order, stopping at a REQUEST that has to wait for a server
+    private void processLines(SelectionKey key, Connection c) throws IOException {
+        int start = 0;
+        int end = c.in.position();
+        for (int i = 0; i < end && !c.waiting; i++) {
+            if (c.in.get(i) == '\n') {
+                int lineEnd = (i > start && c.in.get(i - 1) == '\r') ? i - 1 : i;
+                onLine(key, c, start, lineEnd);
+                start = i + 1;
+                if (!key.isValid()) {
+                    return;
+                }
+            }
+        }
+        if (start == 0 && end == c.in.capacity()) {
+            throw new IOException("Line too long");
+        }
+        c.in.limit(end).position(start);
+        c.in.compact();
+    }
+
+    // Sends the reply for a REQUEST that waited in the queue and carries on with any messages buffered behind it
+    private void resume(SelectionKey key, Connection c, ServerInfo selected) {
+        if (c.released) {
+            if (selected != null) {
+                lb.markFree(selected); // the client left while waiting
+            }
+            return;
+        }
+        c.waiting = false;
+        try {
+            reply(key, c, c.requestId, selected);
+            if (key.isValid()) {
+                process(key, c);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(key, c, e);
+        }
+    }
+
+    // Dispatches one protocol line stored in c.in[from, to)
+    private void onLine(SelectionKey key, Connection c, int from, int to) throws IOException {
+        ByteBuffer b = c.in;
+        if (c.server != null) {
+            // Control connection of a registered server
+            if (equals(b, from, to, FREE)) {
+                lb.markFree(c.server);
+            } else if (equals(b, from, to, REJECTED)) {
+                lb.markRejected(c.server);
+            } else if (equals(b, from, to, PONG)) {
+                c.server.heartbeats.heartbeat(System.currentTimeMillis());
+            } else if (startsWith(b, from, to, LOAD)) {
+                long[] fields = c.loadFields;
+                int p = from + LOAD.length;
+                try {
+                    for (int i = 0; i < fields.length; i++) {
+                        int end = indexOf(b, p + 1, to, (byte) ' ');
+                        end = end < 0 ? to : end;
+                        fields[i] = parseLong(b, p + 1, end);
+                        p = end;
+                    }
+                    lb.reportLoad(c.server, (int) fields[0], (int) fields[1], (int) fields[2], fields[3]);
+                } catch (IOException e) {
+                    Log.warn("Ignoring malformed load report from server on port {}", c.server.port);
+                }
+            } else if (equals(b, from, to, GOODBYE)) {
+                lb.unregister(c.server);
+                close(key, c);
+            }
+        } else if (startsWith(b, from, to, JOIN)) {
+            c.server = lb.register(JoinRequest.parse(string(b, from, to)), c.channel.socket()); // once per server, so no need to avoid garbage
+            send(key, c, OK);
+            c.server.pinger = pinger(key, c, PING);
+        } else if (startsWith(b, from, to, REQUEST)) {
+            request(key, c, requestStrategy(b, from, to), requestKey(b, from, to), 0);
+        } else if (startsWith(b, from, to, FAILED)) {
+            try {
+                lb.reportFailure((int) parseLong(b, from + FAILED.length + 1, to));
+            } catch (IOException e) {
+                Log.warn("Ignoring malformed FAILED report: {}", e.getMessage());
+            }
+        } else if (startsWith(b, from, to, LEASE)) {
+            lease(key, c, lb.leaseLine(string(b, from, to), holder(key, c)), 0); // one per many requests, so garbage is fine
+        } else if (startsWith(b, from, to, RETURN)) {
+            lb.returnLine(string(b, from, to));
+        } else {
+            c.closeAfterWrite = true;
+            flush(key, c);
+        }
+    }
+
+    // Dispatches one binary frame; c.in is bounded to the frame and positioned at its opcode
+    private void onFrame(SelectionKey key, Connection c) throws IOException {
+        ByteBuffer b = c.in;
+        byte opcode = b.get();
+        long id = BinaryCodec.getVarint(b);
+        if (c.server != null) {
+            if (!lb.onControlFrame(c.server, opcode, b)) {
+                close(key, c);
+            }
+        } else if (opcode == BinaryCodec.JOIN) {
+            JoinRequest join = new JoinRequest(BinaryCodec.getInt(b), Strategy.of(b.get()), BinaryCodec.getInt(b));
+            c.server = lb.register(join, c.channel.socket());
+            checkRoom(c);
+            BinaryCodec.end(c.out, BinaryCodec.begin(c.out, BinaryCodec.OK, id));
+            flush(key, c);
+            c.server.pinger = pinger(key, c, BinaryCodec.PING_FRAME);
+        } else if (opcode == BinaryCodec.REQUEST) {
+            request(key, c, Strategy.of(b.get()), LoadBalancer.requestKey(b), id);
+        } else if (opcode == BinaryCodec.FAILED) {
+            lb.reportFailure(BinaryCodec.getInt(b));
+        } else if (opcode == BinaryCodec.LEASE) {
+            lease(key, c, lb.leaseFrame(b, holder(key, c)), id);
+        } else if (opcode == BinaryCodec.RETURN) {
+            lb.returnFrame(b);
+        } else {
+            c.closeAfterWrite = true;
+            flush(key, c);
+        }
+    }
+
+    // Claims a server for one lookup, or parks the connection in the wait queue until one frees up
+    private void request(SelectionKey key, Connection c, Strategy strategy, long routingKey, long id) throws IOException {
+        CompletableFuture<ServerInfo> assigned = lb.assignAsync(strategy, routingKey);
+        if (assigned.isDone()) {
+            reply(key, c, id, assigned.join()); // keep-alive: more requests may follow
+        } else {
+            c.waiting = true; // all servers busy: park this connection until the queue hands us one, or it closes
+            c.requestId = id;
+            assigned.thenAccept(selected -> execute(() -> resume(key, c, selected)));
+            flush(key, c);
+        }
+    }
+
+    // Answers a LEASE once it is granted, parking the connection while it waits in the queue like a REQUEST
+    private void lease(SelectionKey key, Connection c, CompletableFuture<Lease> leased, long id) throws IOException {
+        if (leased.isDone()) {
+            replyLease(key, c, id, leased.join());
+            return;
+        }
+        c.waiting = true;
+        leased.thenAccept(lease -> execute(() -> {
+            if (c.released) {
+                if (lease != null) {
+                    lb.abandon(lease); // the client left while waiting
+                }
+                return;
+            }
+            c.waiting = false;
+            try {
+                replyLease(key, c, id, lease);
+                if (key.isValid()) {
+                    process(key, c);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(key, c, e);
+            }
+        }));
+        flush(key, c);
+    }
+
+    // Answers a LEASE; if the reply cannot be sent the client never learns of the lease, so its slots go back
+    private void replyLease(SelectionKey key, Connection c, long id, Lease lease) throws IOException {
+        try {
+            if (!c.binary) {
+                send(key, c, lease != null ? bytes(lease.line()) : NO_SERVER);
+                return;
+            }
+            if (c.out.remaining() < LEASED_ROOM) {
+                throw new IOException("Output buffer full");
+            }
+            LoadBalancer.encodeLease(c.out, id, lease);
+            flush(key, c);
+        } catch (IOException | RuntimeException e) {
+            if (lease != null) {
+                lb.abandon(lease);
+            }
+            throw e;
+        }
+    }
+
+    // Answers a lookup in the connection's protocol: the port or NO_SERVER line, or an ASSIGNED or NO_SERVER frame.
+    // If the reply cannot be sent the server is freed, as the blocking handler does, since the client is gone.
+    private void reply(SelectionKey key, Connection c, long id, ServerInfo selected) throws IOException {
+        try {
+            if (!c.binary) {
+                send(key, c, selected != null ? bytes(selected.port + "\n") : NO_SERVER);
+                return;
+            }
+            checkRoom(c);
+            if (selected != null) {
+                int start = BinaryCodec.begin(c.out, BinaryCodec.ASSIGNED, id);
+                BinaryCodec.putVarint(c.out, selected.port);
+                BinaryCodec.end(c.out, start);
+            } else {
+                BinaryCodec.end(c.out, BinaryCodec.begin(c.out, BinaryCodec.NO_SERVER, id));
+            }
+            flush(key, c);
+        } catch (IOException | RuntimeException e) {
+            if (selected != null) {
+                lb.markFree(selected);
+            }
+            throw e;
+        }
+    }
+
+    // Reply frames are at most a header, an id and a port, so this much room always suffices
+    private static void checkRoom(Connection c) throws IOException {
+        if (c.out.remaining() < 24) {
+            throw new IOException("Output buffer full");
+        }
+    }
+
+    // Sends PING on a server's control connection from the loop thread, as the health checker asks
+    private Runnable pinger(SelectionKey key, Connection c, byte[] ping) {
+        return () -> execute(() -> {
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                send(key, c, ping);
+            } catch (IOException | RuntimeException e) {
+                fail(key, c, e);
+            }
+        });
+    }
+
+    // The connection's lease holder, created on its first LEASE: pushes INVALIDATE from the loop thread
+    private IntConsumer holder(SelectionKey key, Connection c) {
+        if (c.holder == null) {
+            c.holder = serverPort -> execute(() -> {
+                if (!key.isValid()) {
+                    return; // the client left; its leases lapse
+                }
+                try {
+                    if (c.binary) {
+                        checkRoom(c);
+                        int start = BinaryCodec.begin(c.out, BinaryCodec.INVALIDATE, 0);
+                        BinaryCodec.putVarint(c.out, serverPort);
+                        BinaryCodec.end(c.out, start);
+                        flush(key, c);
+                    } else {
+                        send(key, c, bytes("INVALIDATE " + serverPort + "\n"));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(key, c, e);
+                }
+            });
+        }
+        return c.holder;
+    }
+
+    // Queues a reply and writes as much of it as the socket accepts right now
+    private void send(SelectionKey key, Connection c, byte[] data) throws IOException {
+        if (c.out.remaining() < data.length) {
+            throw new IOException("Output buffer full");
+        }
+        c.out.put(data);
+        flush(key, c);
+    }
+
+    private void flush(SelectionKey key, Connection c) throws IOException {
+        c.out.flip();
+        c.channel.write(c.out);
+        boolean done = !c.out.hasRemaining();
+        c.out.compact();
+        if (done) {
+            if (c.closeAfterWrite) {
+                close(key, c);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void fail(SelectionKey key, Connection c, Exception e) {
+        Log.warn("Error handling connection: {}", e.getMessage());
+        if (c.server != null) {
+            lb.connectionLost(c.server);
+        }
+        close(key, c);
+    }
+
+    private void close(SelectionKey key, Connection c) {
+        key.cancel();
+        try {
+            c.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (!c.released) {
+            c.released = true;
+            freeBuffers.push(c.in.clear());
+            freeBuffers.push(c.out.clear());
+        }
+    }
+
+    // Takes a direct buffer from the free list, allocating only when the list is empty
+    private ByteBuffer buffer() {
+        ByteBuffer b = freeBuffers.poll();
+        return b != null ? b : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    // Maps the "REQUEST <type> [path]" line in b[from, to) to the strategy that serves it, without allocating
+    static Strategy requestStrategy(ByteBuffer b, int from, int to) {
+        int p = Math.min(from + REQUEST.length + 1, to);
+        int sp = indexOf(b, p, to, (byte) ' ');
+        return isDynamic(b, p, sp < 0 ? to : sp) ? Strategy.DYNAMIC : Strategy.STATIC;
+    }
+
+    // Hashes the path of the "REQUEST <type> <path>" line in b[from, to) straight from the buffer, NO_KEY without one
+    static long requestKey(ByteBuffer b, int from, int to) {
+        int p = Math.min(from + REQUEST.length + 1, to);
+        int sp = indexOf(b, p, to, (byte) ' ');
+        return sp < 0 || sp + 1 == to ? ServerPool.NO_KEY : ConsistentHashPool.hash(b, sp + 1, to);
+    }
+
+    private static boolean isDynamic(ByteBuffer b, int from, int to) {
+        for (byte[] t : DYNAMIC_TYPES) {
+            if (equals(b, from, to, t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(ByteBuffer b, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (Character.toUpperCase(b.get(from + i)) != prefix[i] && Character.toLowerCase(b.get(from + i)) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equals(ByteBuffer b, int from, int to, byte[] token) {
+        return to - from == token.length && startsWith(b, from, to, token);
+    }
+
+    private static int indexOf(ByteBuffer b, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (b.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(ByteBuffer b, int from, int to) throws IOException {
+        if (from >= to) {
+            throw new IOException("Missing number");
+        }
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = b.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("Invalid number");
+            }
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private static String string(ByteBuffer b, int from, int to) {
+        byte[] a = new byte[to - from];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = b.get(from + i);
+        }
+        return new String(a, StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Per-connection state: read/write buffers and, for server control connections, the registry entry
+    private static class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer in;
+        final ByteBuffer out;
+        ServerInfo server;
+        boolean closeAfterWrite;
+        boolean released;
+        boolean waiting; // a REQUEST is parked in the wait queue; later messages stay buffered
+        long requestId; // id of the parked binary REQUEST, echoed in its reply
+        boolean negotiated; // the first byte has been seen
+        boolean binary; // the connection opened with BinaryCodec.MAGIC
+        final long[] loadFields = new long[4]; // scratch for parsing LOAD reports without allocating
+        IntConsumer holder; // set once the client takes a lease
+
+        Connection(SocketChannel channel, ByteBuffer in, ByteBuffer out) {
+            this.channel = channel;
+            this.in = in;
+            this.out = out;
+        }
+    }
+}
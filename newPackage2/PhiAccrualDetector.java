@@ -0,0 +1,59 @@
+package networkProject.newPackage2;
+
+// Phi-accrual failure detector (Hayashibara et al.): instead of a fixed timeout it turns the time since the last
+// heartbeat into a suspicion level phi, based on the mean and spread of recent heartbeat intervals. phi = 8 means
+// about a 1 in 10^8 chance that a heartbeat this late would still arrive. Thread-safe.
+class PhiAccrualDetector {
+
+    private static final int WINDOW = 100; // intervals remembered
+
+    private final long[] intervals = new long[WINDOW];
+    private final long minStdDevMillis;
+    private final long acceptablePauseMillis;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private volatile long lastHeartbeat;
+
+    // Starts as if one interval of the expected length had been seen, so phi is meaningful before real samples arrive
+    PhiAccrualDetector(long expectedIntervalMillis) {
+        this.minStdDevMillis = Math.max(10, expectedIntervalMillis / 10);
+        this.acceptablePauseMillis = expectedIntervalMillis; // one lost heartbeat is not yet suspicious
+        add(expectedIntervalMillis);
+        lastHeartbeat = System.currentTimeMillis();
+    }
+
+    synchronized void heartbeat(long nowMillis) {
+        add(nowMillis - lastHeartbeat);
+        lastHeartbeat = nowMillis;
+    }
+
+    long lastHeartbeat() {
+        return lastHeartbeat;
+    }
+
+    // Suspicion that the server is gone; grows without bound the longer heartbeats stay away
+    synchronized double phi(long nowMillis) {
+        double mean = sum / count + acceptablePauseMillis;
+        double variance = sumOfSquares / count - (sum / count) * (sum / count);
+        double stdDev = Math.max(Math.sqrt(Math.max(variance, 0)), minStdDevMillis);
+        double y = (nowMillis - lastHeartbeat - mean) / stdDev;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y)); // logistic approximation of the normal CDF
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    private void add(long interval) {
+        if (count == WINDOW) {
+            long old = intervals[next];
+            sum -= old;
+            sumOfSquares -= (double) old * old;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % WINDOW;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+}
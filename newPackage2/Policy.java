@@ -0,0 +1,39 @@
+package networkProject.newPackage2;
+
+// Selection algorithm a strategy's pool uses
+public enum Policy {
+
+    ROUND_ROBIN,
+    LEAST_CONNECTIONS, // with LRU tie-breaking
+    LEAST_RESPONSE_TIME, // weighted by the latency EWMA and load the server reports
+    POWER_OF_TWO, // best of two random servers by the same load score
+    CONSISTENT_HASH; // request path on a hash ring with bounded loads, for cache affinity
+
+    // Parses a policy name such as "power_of_two" or "p2c"
+    public static Policy parse(String s) {
+        if ("hash".equalsIgnoreCase(s) || "chash".equalsIgnoreCase(s)) {
+            return CONSISTENT_HASH;
+        }
+        if ("p2c".equalsIgnoreCase(s)) {
+            return POWER_OF_TWO;
+        }
+        if ("lrt".equalsIgnoreCase(s)) {
+            return LEAST_RESPONSE_TIME;
+        }
+        return valueOf(s.toUpperCase().replace('-', '_'));
+    }
+
+    // Creates an empty pool that selects with this policy
+    ServerPool newPool() {
+        switch (this) {
+            case ROUND_ROBIN:
+                return new RoundRobinPool();
+            case LEAST_CONNECTIONS:
+                return new LeastConnectionsPool();
+            case CONSISTENT_HASH:
+                return new ConsistentHashPool();
+            default:
+                return new LoadAwarePool(this == POWER_OF_TWO);
+        }
+    }
+}
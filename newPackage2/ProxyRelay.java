@@ -0,0 +1,363 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Data-plane mode of the load balancer: a client sends its request here exactly as it would to a server,
+// the relay picks a backend from the request's first line and then pumps bytes both ways between the two
+// channels through pooled direct buffers, without copying them onto the heap.
+class ProxyRelay extends Thread {
+
+    private static final byte[] NO_SERVER = "NO_SERVER\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final LoadBalancer lb;
+    private final ServerSocketChannel listener;
+    private final BufferPool buffers;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final LongAdder bytesUp;
+    private final LongAdder bytesDown;
+    private volatile boolean running = true;
+
+    // Several relays may share one listener; each registers it with its own selector and accepts in turn
+    ProxyRelay(LoadBalancer lb, ServerSocketChannel listener, BufferPool buffers, int id) throws IOException {
+        super("lb-proxy-" + id);
+        this.lb = lb;
+        this.listener = listener;
+        this.buffers = buffers;
+        this.bytesUp = lb.metrics.counter("proxy.bytes_up");
+        this.bytesDown = lb.metrics.counter("proxy.bytes_down");
+        this.selector = Selector.open();
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        setDaemon(true);
+    }
+
+    // Runs a task on the relay thread; used when a queued request gets its server
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session s = (Session) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            s.backend.finishConnect();
+                            s.connected = true;
+                        }
+                        if (key.isReadable()) {
+                            read(s, key == s.clientKey);
+                        }
+                        pump(s);
+                    } catch (IOException e) {
+                        fail(s, e);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("Proxy relay error: {}", e.getMessage());
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Session) {
+                close((Session) key.attachment());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = listener.accept();
+        if (ch == null) {
+            return; // another relay took it
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Session s = new Session(ch, buffers.acquire(), buffers.acquire());
+        s.clientKey = ch.register(selector, SelectionKey.OP_READ, s);
+    }
+
+    private void read(Session s, boolean fromClient) throws IOException {
+        if (fromClient) {
+            if (s.client.read(s.up) < 0) {
+                s.clientEof = true;
+            }
+            if (s.server == null && !s.rejected && !s.routing) {
+                route(s);
+            }
+        } else if (s.backend.read(s.down) < 0) {
+            s.backendEof = true;
+        }
+    }
+
+    // Picks a backend once the client's request header has arrived: "<choice>\n" or "MUX\n<id> <choice> ..."
+    private void route(Session s) throws IOException {
+        int choice = parseChoice(s.up);
+        if (choice == -1) {
+            if (!s.up.hasRemaining() || s.clientEof) {
+                throw new IOException("Malformed proxied request");
+            }
+            return; // header incomplete, wait for more bytes
+        }
+        Strategy strategy = Strategy.forRequestType(Client.requestTypeFor(choice));
+        CompletableFuture<ServerInfo> assigned = lb.assignAsync(strategy);
+        if (assigned.isDone()) {
+            connect(s, assigned.join());
+        } else {
+            s.routing = true; // waiting in the balancer's queue; keep buffering the client's bytes meanwhile
+            assigned.thenAccept(selected -> execute(() -> {
+                try {
+                    connect(s, selected);
+                    pump(s);
+                } catch (IOException e) {
+                    fail(s, e);
+                }
+            }));
+        }
+    }
+
+    // Opens the backend connection for the assigned server, or answers NO_SERVER when there is none
+    private void connect(Session s, ServerInfo selected) throws IOException {
+        s.routing = false;
+        if (s.closed) {
+            if (selected != null) {
+                lb.markFree(selected); // the client left while waiting
+            }
+            return;
+        }
+        if (selected == null) {
+            s.rejected = true;
+            s.down.put(NO_SERVER);
+            return;
+        }
+        s.server = selected;
+        s.backend = SocketChannel.open();
+        s.backend.configureBlocking(false);
+        s.backend.socket().setTcpNoDelay(true);
+        s.connected = s.backend.connect(new InetSocketAddress("localhost", selected.port));
+        s.backendKey = s.backend.register(selector, s.connected ? 0 : SelectionKey.OP_CONNECT, s);
+    }
+
+    private void fail(Session s, IOException e) {
+        if (s.server != null && !s.connected) {
+            lb.reportFailure(s.server.port); // the backend never saw the request: frees its slot and counts against its breaker
+            if (++s.attempts < Client.MAX_ATTEMPTS && !s.closed) {
+                Log.warn("Proxy backend on port {} unreachable ({}), trying another", s.server.port, e.getMessage());
+                if (s.backendKey != null) {
+                    s.backendKey.cancel();
+                }
+                try {
+                    if (s.backend != null) {
+                        s.backend.close();
+                    }
+                } catch (IOException ignored) {
+                }
+                s.server = null;
+                s.backend = null;
+                s.backendKey = null;
+                try {
+                    route(s); // the request is still buffered in s.up
+                    pump(s);
+                } catch (IOException again) {
+                    fail(s, again);
+                }
+                return;
+            }
+        }
+        Log.warn("Proxy connection failed: {}", e.getMessage());
+        close(s);
+    }
+
+    // Moves whatever each side can accept right now, forwards half-closes and recomputes interest sets
+    private void pump(Session s) throws IOException {
+        if (s.closed) {
+            return;
+        }
+        if (s.connected) {
+            bytesUp.add(flush(s.up, s.backend));
+            if (s.clientEof && s.up.position() == 0 && !s.upShut) {
+                s.backend.shutdownOutput();
+                s.upShut = true;
+            }
+        }
+        bytesDown.add(flush(s.down, s.client));
+        boolean downDrained = s.down.position() == 0;
+        if (s.rejected && downDrained) {
+            close(s);
+            return;
+        }
+        if (s.backendEof && downDrained && !s.downShut) {
+            s.client.shutdownOutput();
+            s.downShut = true;
+        }
+        if (s.upShut && s.downShut) {
+            close(s);
+            return;
+        }
+
+        int clientOps = 0;
+        if (!s.clientEof && s.up.hasRemaining() && !s.rejected) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (!downDrained) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        s.clientKey.interestOps(clientOps);
+        if (s.backendKey != null && s.connected) {
+            int backendOps = 0;
+            if (!s.backendEof && s.down.hasRemaining()) {
+                backendOps |= SelectionKey.OP_READ;
+            }
+            if (s.up.position() > 0) {
+                backendOps |= SelectionKey.OP_WRITE;
+            }
+            s.backendKey.interestOps(backendOps);
+        }
+    }
+
+    // Writes the buffer's pending bytes (kept in fill mode) to the channel, keeps the rest and returns the count written
+    private static int flush(ByteBuffer b, SocketChannel ch) throws IOException {
+        if (b.position() == 0) {
+            return 0;
+        }
+        b.flip();
+        int n = ch.write(b);
+        b.compact();
+        return n;
+    }
+
+    // Reads the choice from the buffered header without copying it; -1 while it is incomplete
+    static int parseChoice(ByteBuffer b) {
+        int end = b.position();
+        int i = 0;
+        if (end > 0 && b.get(0) == BinaryCodec.MAGIC) {
+            return binaryChoice(b, end);
+        }
+        if (end >= 4 && b.get(0) == 'M' && b.get(1) == 'U' && b.get(2) == 'X' && b.get(3) == '\n') {
+            i = 4;
+            while (i < end && b.get(i) != ' ') {
+                i++; // skip the request id
+            }
+            i++;
+        }
+        int choice = 0;
+        int digits = 0;
+        for (; i < end; i++) {
+            byte c = b.get(i);
+            if (c >= '0' && c <= '9') {
+                choice = choice * 10 + (c - '0');
+                digits++;
+            } else if (digits > 0) {
+                return choice;
+            } else if (c == '\n' || c == ' ') {
+                return 0; // no numeric choice; route like an unknown request
+            }
+        }
+        return -1;
+    }
+
+    // Choice of a buffered MAGIC + CALL frame, read by absolute index; -1 until the whole frame has arrived
+    private static int binaryChoice(ByteBuffer b, int end) {
+        int size = BinaryCodec.frameSize(b, 1, end);
+        if (size < 0) {
+            return -1;
+        }
+        int i = 3;
+        if (b.get(i++) != BinaryCodec.CALL) {
+            return 0;
+        }
+        while (i < end && b.get(i) < 0) {
+            i++; // skip the request id varint
+        }
+        i++;
+        int choice = 0;
+        for (int shift = 0; i < 1 + size && shift < 32; shift += 7) {
+            byte x = b.get(i++);
+            choice |= (x & 0x7F) << shift;
+            if (x >= 0) {
+                return choice;
+            }
+        }
+        return 0;
+    }
+
+    private void close(Session s) {
+        if (s.closed) {
+            return;
+        }
+        s.closed = true;
+        try {
+            s.client.close();
+        } catch (IOException ignored) {
+        }
+        if (s.backend != null) {
+            try {
+                s.backend.close();
+            } catch (IOException ignored) {
+            }
+        }
+        buffers.release(s.up);
+        buffers.release(s.down);
+    }
+
+    // One proxied client connection and its backend; both buffers are kept in fill mode
+    private static class Session {
+
+        final SocketChannel client;
+        final ByteBuffer up; // client -> backend
+        final ByteBuffer down; // backend -> client
+        SocketChannel backend;
+        SelectionKey clientKey;
+        SelectionKey backendKey;
+        ServerInfo server;
+        boolean connected;
+        boolean routing; // waiting for the balancer to hand out a server
+        int attempts; // backends that could not be reached
+        boolean rejected;
+        boolean clientEof;
+        boolean backendEof;
+        boolean upShut;
+        boolean downShut;
+        boolean closed;
+
+        Session(SocketChannel client, ByteBuffer up, ByteBuffer down) {
+            this.client = client;
+            this.up = up;
+            this.down = down;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package networkProject.newPackage2;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Round-robin over an immutable member snapshot with a lock-free cursor; selection allocates nothing
+class RoundRobinPool implements ServerPool {
+
+    private volatile ServerInfo[] members = new ServerInfo[0];
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    @Override
+    public synchronized void add(ServerInfo s) {
+        ServerInfo[] next = Arrays.copyOf(members, members.length + 1);
+        next[members.length] = s;
+        members = next;
+    }
+
+    @Override
+    public synchronized void remove(ServerInfo s) {
+        s.removed = true;
+        ServerInfo[] current = members;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == s) {
+                ServerInfo[] next = new ServerInfo[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                members = next;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public ServerInfo select() {
+        ServerInfo[] snapshot = members;
+        int n = snapshot.length;
+        if (n == 0) {
+            return null;
+        }
+        int start = cursor.getAndIncrement();
+        for (int i = 0; i < n; i++) {
+            ServerInfo s = snapshot[Math.floorMod(start + i, n)];
+            if (s.tryAcquire()) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void release(ServerInfo s) {
+        s.release();
+    }
+
+    @Override
+    public int size() {
+        return members.length;
+    }
+}
@@ -0,0 +1,289 @@
+package networkProject.newPackage2;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Client-side cache of leased server slots, one list of leases per strategy, kept over one persistent connection to
+// the load balancer. A request takes a slot from a live lease and only asks the balancer again, with one LEASE for
+// several slots, once the strategy's leases are used up or expired, so lookups cost far less than one round-trip per
+// request. Unused slots go back with RETURN when a lease expires, when the balancer pushes INVALIDATE for one of its
+// servers (or port 0 when a server joins, so the newcomer gets traffic), after a FAILED report, and on close.
+final class RoutingTable implements Closeable {
+
+    private final int lbPort;
+    private final boolean binary;
+    private final int slots; // slots asked for per LEASE
+    private final long ttlMillis;
+    private final List<Grant> grants = new ArrayList<>(); // live leases of every strategy
+    private long nextId;
+    private Socket lb;
+    private OutputStream out;
+    private BufferedReader text;
+    private DataInputStream data;
+    private ByteBuffer frame = ByteBuffer.allocate(512);
+
+    RoutingTable(int lbPort, boolean binary, int slots, long ttlMillis) {
+        this.lbPort = lbPort;
+        this.binary = binary;
+        this.slots = slots;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Port of a leased slot for the strategy, leasing more first when none is left; the caller sends one request there
+    synchronized int take(Strategy strategy) throws IOException {
+        connect();
+        readPushes();
+        long now = System.currentTimeMillis();
+        for (Iterator<Grant> it = grants.iterator(); it.hasNext(); ) {
+            Grant g = it.next();
+            if (now >= g.expiresAt) {
+                it.remove();
+                settle(g);
+            }
+        }
+        for (Grant g : grants) {
+            if (g.strategy == strategy) {
+                return spend(g);
+            }
+        }
+        Grant g = lease(strategy);
+        grants.add(g);
+        return spend(g);
+    }
+
+    // Reports a server the caller could not connect to, which frees the slot it took, and drops leases on that server
+    synchronized void failed(int port) throws IOException {
+        connect();
+        if (binary) {
+            int start = BinaryCodec.begin(frame.clear(), BinaryCodec.FAILED, ++nextId);
+            BinaryCodec.putVarint(frame, port);
+            BinaryCodec.end(frame, start);
+            BinaryCodec.write(out, frame);
+        } else {
+            out.write(("FAILED " + port + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        invalidate(port);
+    }
+
+    // Returns every unused slot and closes the connection
+    @Override
+    public synchronized void close() throws IOException {
+        if (lb == null) {
+            return;
+        }
+        try {
+            invalidate(0);
+        } finally {
+            lb.close();
+            lb = null;
+        }
+    }
+
+    // Takes the slot on the server with the most left, which spreads a lease's requests across its servers
+    private int spend(Grant g) throws IOException {
+        int best = 0;
+        for (int i = 1; i < g.ports.length; i++) {
+            if (g.left[i] > g.left[best]) {
+                best = i;
+            }
+        }
+        g.left[best]--;
+        if (g.remaining() == 0) {
+            grants.remove(g);
+            settle(g); // nothing to give back, but the balancer can forget the lease
+        }
+        return g.ports[best];
+    }
+
+    private Grant lease(Strategy strategy) throws IOException {
+        if (binary) {
+            int start = BinaryCodec.begin(frame.clear(), BinaryCodec.LEASE, ++nextId);
+            frame.put((byte) strategy.ordinal());
+            BinaryCodec.putVarint(frame, slots);
+            BinaryCodec.putVarint(frame, ttlMillis);
+            BinaryCodec.end(frame, start);
+            BinaryCodec.write(out, frame);
+            while (true) {
+                ByteBuffer reply = readFrame();
+                byte opcode = reply.get();
+                BinaryCodec.getVarint(reply);
+                if (opcode == BinaryCodec.INVALIDATE) {
+                    invalidate(BinaryCodec.getInt(reply));
+                } else if (opcode == BinaryCodec.NO_SERVER) {
+                    throw new IOException("No server available");
+                } else if (opcode == BinaryCodec.LEASED) {
+                    long id = BinaryCodec.getVarint(reply);
+                    long ttl = BinaryCodec.getVarint(reply);
+                    int n = BinaryCodec.getInt(reply);
+                    Grant g = new Grant(id, strategy, n, ttl);
+                    for (int i = 0; i < n; i++) {
+                        g.ports[i] = BinaryCodec.getInt(reply);
+                        g.left[i] = BinaryCodec.getInt(reply);
+                    }
+                    return g;
+                } else {
+                    throw new IOException("Unexpected reply opcode " + opcode);
+                }
+            }
+        }
+        String type = strategy == Strategy.DYNAMIC ? "compute" : "file";
+        out.write(("LEASE " + type + " " + slots + " " + ttlMillis + "\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        while (true) {
+            String line = readLine();
+            if (line.startsWith("INVALIDATE ")) {
+                invalidate(Integer.parseInt(line.substring(11).trim()));
+            } else if (line.equals("NO_SERVER")) {
+                throw new IOException("No server available");
+            } else if (line.startsWith("LEASED ")) {
+                String[] parts = line.split(" ");
+                Grant g = new Grant(Long.parseLong(parts[1]), strategy, parts.length - 3, Long.parseLong(parts[2]));
+                for (int i = 0; i < g.ports.length; i++) {
+                    String[] pair = parts[i + 3].split(":");
+                    g.ports[i] = Integer.parseInt(pair[0]);
+                    g.left[i] = Integer.parseInt(pair[1]);
+                }
+                return g;
+            } else {
+                throw new IOException("Unexpected reply: " + line);
+            }
+        }
+    }
+
+    // Applies INVALIDATE pushes that arrived since the last lookup, without blocking
+    private void readPushes() throws IOException {
+        if (binary) {
+            while (data.available() > 0) {
+                ByteBuffer push = readFrame();
+                if (push.get() == BinaryCodec.INVALIDATE) {
+                    BinaryCodec.getVarint(push);
+                    invalidate(BinaryCodec.getInt(push));
+                }
+            }
+        } else {
+            while (text.ready()) {
+                String line = readLine();
+                if (line.startsWith("INVALIDATE ")) {
+                    invalidate(Integer.parseInt(line.substring(11).trim()));
+                }
+            }
+        }
+    }
+
+    // Drops and settles the leases with slots on the server, or every lease for port 0
+    private void invalidate(int port) throws IOException {
+        for (Iterator<Grant> it = grants.iterator(); it.hasNext(); ) {
+            Grant g = it.next();
+            if (port == 0 || g.holds(port)) {
+                it.remove();
+                settle(g);
+            }
+        }
+    }
+
+    // Ends a lease at the balancer, listing the slots that were never used
+    private void settle(Grant g) throws IOException {
+        if (binary) {
+            int start = BinaryCodec.begin(frame.clear(), BinaryCodec.RETURN, ++nextId);
+            BinaryCodec.putVarint(frame, g.id);
+            int unused = 0;
+            for (int left : g.left) {
+                unused += left > 0 ? 1 : 0;
+            }
+            BinaryCodec.putVarint(frame, unused);
+            for (int i = 0; i < g.ports.length; i++) {
+                if (g.left[i] > 0) {
+                    BinaryCodec.putVarint(frame, g.ports[i]);
+                    BinaryCodec.putVarint(frame, g.left[i]);
+                }
+            }
+            BinaryCodec.end(frame, start);
+            BinaryCodec.write(out, frame);
+            return;
+        }
+        StringBuilder sb = new StringBuilder("RETURN ").append(g.id);
+        for (int i = 0; i < g.ports.length; i++) {
+            if (g.left[i] > 0) {
+                sb.append(' ').append(g.ports[i]).append(':').append(g.left[i]);
+            }
+        }
+        out.write(sb.append('\n').toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void connect() throws IOException {
+        if (lb != null && !lb.isClosed()) {
+            return;
+        }
+        grants.clear(); // leases of a lost connection lapse at the balancer
+        lb = new Socket("localhost", lbPort);
+        lb.setTcpNoDelay(true);
+        out = lb.getOutputStream();
+        if (binary) {
+            data = new DataInputStream(new BufferedInputStream(lb.getInputStream()));
+            out.write(BinaryCodec.MAGIC);
+        } else {
+            text = new BufferedReader(new InputStreamReader(lb.getInputStream()));
+        }
+    }
+
+    private ByteBuffer readFrame() throws IOException {
+        ByteBuffer reply = BinaryCodec.readFrame(data, frame);
+        if (reply == null) {
+            lb.close();
+            throw new IOException("Load balancer closed the connection");
+        }
+        frame = reply;
+        return reply;
+    }
+
+    private String readLine() throws IOException {
+        String line = text.readLine();
+        if (line == null) {
+            lb.close();
+            throw new IOException("Load balancer closed the connection");
+        }
+        return line;
+    }
+
+    // One lease as the client sees it: slots left per server and when the balancer stops honouring it
+    private static final class Grant {
+
+        final long id;
+        final Strategy strategy;
+        final int[] ports;
+        final int[] left;
+        final long expiresAt;
+
+        Grant(long id, Strategy strategy, int servers, long ttlMillis) {
+            this.id = id;
+            this.strategy = strategy;
+            this.ports = new int[servers];
+            this.left = new int[servers];
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        boolean holds(int port) {
+            for (int p : ports) {
+                if (p == port) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int remaining() {
+            int n = 0;
+            for (int l : left) {
+                n += l;
+            }
+            return n;
+        }
+    }
+}
@@ -1,17 +1,71 @@
 package networkProject.newPackage2;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server {
 
     private int port;
     private String strategy;
     private Socket lbSocket;
+    private BufferedReader lbReader; // control connection input in the text protocol
+    private DataInputStream lbData; // and in the binary protocol
     private ServerSocket serverSocket;
-    private int lbPort;
+    private int lbPort; // the balancer we are registered with
+    private int[] lbPorts; // balancers of a cluster, any of which will do; null registers with lbPort only
+    private volatile boolean running = true;
+    private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+    private int poolSize = ExecutionMode.DEFAULT_POOL_SIZE;
+    private ExecutorService executor;
+    private int capacity = DEFAULT_CAPACITY;
+    private ContentCache cache;
+    private long cacheBytes = 64L * 1024 * 1024; // 0 disables the content cache
+    private int computeThreads = Runtime.getRuntime().availableProcessors();
+    private int computeQueue = 2 * Runtime.getRuntime().availableProcessors();
+    private ComputeEngine.Workload computeWorkload = ComputeEngine.Workload.SLEEP; // a bare "<size>" keeps meaning seconds
+    private ComputeEngine compute;
+    private int sessionThreads = Math.max(2, Runtime.getRuntime().availableProcessors()); // 0 keeps a thread per session
+    private TimerWheel timers;
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicLong latencyEwmaMicros = new AtomicLong();
+    private long loadReportMillis = 1000; // 0 disables LOAD reports
+    private ScheduledExecutorService loadReporter;
+    private int statsPort = 0; // 0 = no stats endpoint
+    private StatsEndpoint statsEndpoint;
+    private boolean binaryProtocol = true; // false speaks the text line protocol to the load balancer
+    private final ByteBuffer lbFrame = ByteBuffer.allocate(64); // control frames are encoded here, under sendToLb's lock
+    private final Metrics metrics;
+    private final LatencyHistogram[] serviceMicros = new LatencyHistogram[BINARY_FILE + 1]; // by choice, 0 = invalid
+    private final LongAdder requests;
+    private final LongAdder rejectedRequests;
+    private final LongAdder bytesSent;
+    private final LongAdder listedEntries;
+    private final LongAdder streamFrames;
+    private final LongAdder streamDowngrades;
+    private final LatencyHistogram streamStallMicros;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final BufferPool streamHeaders = new BufferPool(VideoStream.HEADER_SIZE, 4096);
+    private static final double EWMA_ALPHA = 0.2;
     private static final int LB_PORT = 6789;
+    private static final long REJOIN_MILLIS = 500;
+    static final int DEFAULT_CAPACITY = 4; // concurrent requests advertised to the load balancer
+    static final String MUX = "MUX"; // first line of a multiplexed keep-alive connection
+    static final int BINARY_FILE = 5; // choice for the length-prefixed binary file transfer
 
     // Constructs a server with the given port and strategy, using the default LB port
     public Server(int port, String strategy) {
@@ -23,158 +77,847 @@ public class Server {
         this.port = port;
         this.strategy = strategy;
         this.lbPort = lbPort;
+        this.metrics = new Metrics("server." + port);
+        for (int c = 0; c < serviceMicros.length; c++) {
+            serviceMicros[c] = metrics.histogram((c == 0 ? "invalid" : "choice" + c) + ".service_us");
+        }
+        requests = metrics.counter("requests");
+        rejectedRequests = metrics.counter("rejected");
+        bytesSent = metrics.counter("bytes_sent");
+        listedEntries = metrics.counter("listing.entries");
+        streamFrames = metrics.counter("stream.frames");
+        streamDowngrades = metrics.counter("stream.downgrades");
+        streamStallMicros = metrics.histogram("stream.stall_us");
+        metrics.gauge("stream.active", activeStreams::get);
+        metrics.gauge("timer.pending", () -> timers != null ? timers.pending() : 0);
+        metrics.gauge("active_requests", activeRequests::get);
+        metrics.gauge("compute_queued", () -> compute != null ? compute.queued() : 0);
+        metrics.gauge("cache_hits", () -> cache != null ? cache.hits() : 0);
+        metrics.gauge("cache_misses", () -> cache != null ? cache.misses() : 0);
+    }
+
+    // Registers with any one balancer of a cluster, which gossips this server to the others; the first one tried
+    // depends on the server's port so servers spread over the cluster, and the server moves to another balancer if
+    // its own goes away
+    public void setLoadBalancers(int... ports) {
+        this.lbPorts = ports;
+    }
+
+    // Chooses how client connections are handled (platform threads, a bounded pool or virtual threads)
+    public void setExecutionMode(ExecutionMode mode, int poolSize) {
+        this.executionMode = mode;
+        this.poolSize = poolSize;
+    }
+
+    // Sets how many requests the load balancer may have in flight on this server at once
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // Sets the content cache budget in bytes; 0 disables caching of listings and files
+    public void setCacheSize(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+    }
+
+    // Sizes the compute engine and picks the workload used when a computation request names none
+    public void setCompute(int threads, int maxQueued, String defaultWorkload) {
+        this.computeThreads = threads;
+        this.computeQueue = maxQueued;
+        this.computeWorkload = ComputeEngine.Workload.parse(defaultWorkload, ComputeEngine.Workload.SLEEP);
+    }
+
+    // Sets how many threads run time-driven sessions (sleep computations and streams) off the timer wheel;
+    // 0 runs each session on its connection's thread instead
+    public void setSessionThreads(int threads) {
+        this.sessionThreads = threads;
+    }
+
+    // Sets how often LOAD reports are pushed to the load balancer; 0 disables them
+    public void setLoadReportInterval(long millis) {
+        this.loadReportMillis = millis;
+    }
+
+    // Serves the server's counters and per-choice service time histograms as text on a local port; 0 disables it
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    // Chooses binary frames (the default) or text lines for the load balancer control connection
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // Counters and latency histograms (service time per choice, bytes sent, rejections) as text
+    public String stats() {
+        return metrics.render();
     }
 
     // Registers the server with the load balancer and starts listening for clients
     public void start() throws IOException {
-        lbSocket = new Socket("localhost", lbPort);
-        DataOutputStream outToLb = new DataOutputStream(lbSocket.getOutputStream());
-        outToLb.writeBytes("JOIN " + port + " " + strategy + "\n");
-        outToLb.flush();
-        BufferedReader inFromLb = new BufferedReader(new InputStreamReader(lbSocket.getInputStream()));
-        String response = inFromLb.readLine();
-        if (!"OK".equals(response)) {
-            System.out.println("Failed to join load balancer");
-            lbSocket.close();
+        compute = new ComputeEngine(computeThreads, computeQueue);
+        if (sessionThreads > 0) {
+            timers = new TimerWheel("server-" + port, sessionThreads);
+        }
+        if (cacheBytes > 0) {
+            cache = new ContentCache(cacheBytes, (int) Math.min(cacheBytes / 8, 1024 * 1024));
+        }
+        if (executionMode == ExecutionMode.POOLED) {
+            capacity = Math.min(capacity, poolSize); // a slot without a worker thread would only queue
+        }
+        if (!joinAny()) {
+            if (cache != null) {
+                cache.close();
+            }
             return;
         }
-        System.out.println("Successfully registered with load balancer on port " + lbPort);
+        Thread heartbeats = new Thread(this::answerHeartbeats, "lb-heartbeat-" + port);
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+        if (statsPort > 0) {
+            statsEndpoint = new StatsEndpoint(statsPort, metrics);
+            statsEndpoint.start();
+        }
+        if (loadReportMillis > 0) {
+            loadReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "load-report-" + port);
+                t.setDaemon(true);
+                return t;
+            });
+            loadReporter.scheduleAtFixedRate(this::reportLoad, loadReportMillis, loadReportMillis, TimeUnit.MILLISECONDS);
+        }
 
-        serverSocket = new ServerSocket(port);
-        System.out.println("Server listening on port " + port + " with strategy " + strategy);
+        ServerSocketChannel listener = ServerSocketChannel.open(); // channel-backed so accepted sockets support transferTo
+        listener.bind(new InetSocketAddress(port));
+        serverSocket = listener.socket();
+        Log.info("Server listening on port {} with strategy {} and {} slot(s)", port, strategy, capacity);
 
-        while (!Thread.currentThread().isInterrupted()) {
+        executor = executionMode.newExecutor("server-" + port, poolSize);
+        while (running && !Thread.currentThread().isInterrupted()) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("Accepted connection from client: " + clientSocket.getRemoteSocketAddress());
-                new Thread(() -> handleClient(clientSocket)).start();
-            } catch (SocketException e) {
-                if (Thread.currentThread().isInterrupted()) {
+                Log.debug("Accepted connection from client: {}", clientSocket.getRemoteSocketAddress());
+                executor.execute(() -> handleClient(clientSocket));
+            } catch (IOException e) { // a channel-backed socket reports close() during accept as AsynchronousCloseException
+                if (!running || serverSocket.isClosed() || Thread.currentThread().isInterrupted()) {
                     break;
                 }
-                e.printStackTrace();
+                Log.error("Accept failed on port " + port, e);
             }
         }
+        executor.shutdown();
+        compute.shutdown();
+        if (cache != null) {
+            cache.close();
+        }
+        if (timers != null) {
+            timers.shutdown();
+        }
+        if (loadReporter != null) {
+            loadReporter.shutdownNow();
+        }
+        if (statsEndpoint != null) {
+            statsEndpoint.shutdown();
+        }
         serverSocket.close();
         lbSocket.close();
-        System.out.println("Server on port " + port + " shutting down.");
+        Log.info("Server on port {} shutting down.", port);
     }
 
-    // Handles a single client request and notifies the load balancer when done
-    private void handleClient(Socket clientSocket) {
-        try (
-                BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-            String choiceStr = in.readLine();
-            String type = in.readLine();
-
-            if (choiceStr == null || type == null) {
-                out.writeBytes("Invalid request\n");
-                out.flush();
-                System.out.println("Received invalid request from client.");
+    // Joins the first balancer that accepts and makes its connection the control connection. A lone balancer that
+    // cannot be reached is an error as before; cluster members that cannot are skipped.
+    private boolean joinAny() throws IOException {
+        int[] ports = lbPorts != null ? lbPorts : new int[]{lbPort};
+        for (int i = 0; i < ports.length; i++) {
+            int candidate = ports[(port + i) % ports.length];
+            Socket s;
+            try {
+                s = new Socket("localhost", candidate);
+            } catch (IOException e) {
+                if (lbPorts == null) {
+                    throw e;
+                }
+                Log.debug("Load balancer on port {} unreachable: {}", candidate, e.getMessage());
+                continue;
+            }
+            if (join(s)) {
+                synchronized (this) {
+                    lbSocket = s;
+                    lbPort = candidate;
+                }
+                Log.info("Successfully registered with load balancer on port {}", candidate);
+                return true;
+            }
+            Log.warn("Failed to join load balancer on port {}", candidate);
+            s.close();
+        }
+        return false;
+    }
+
+    // Sends JOIN over a new control connection in the configured protocol; true once the load balancer answered OK
+    private boolean join(Socket s) throws IOException {
+        JoinRequest join = new JoinRequest(port, Strategy.parse(strategy), capacity);
+        if (!binaryProtocol) {
+            DataOutputStream outToLb = new DataOutputStream(s.getOutputStream());
+            outToLb.writeBytes(join.toLine());
+            outToLb.flush();
+            lbReader = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            return "OK".equals(lbReader.readLine());
+        }
+        synchronized (this) {
+            lbFrame.clear(); // may hold a frame the lost connection failed to send
+            lbFrame.put(BinaryCodec.MAGIC);
+            int start = BinaryCodec.begin(lbFrame, BinaryCodec.JOIN, 0);
+            BinaryCodec.putVarint(lbFrame, join.port);
+            lbFrame.put((byte) join.strategy.ordinal());
+            BinaryCodec.putVarint(lbFrame, join.capacity);
+            BinaryCodec.end(lbFrame, start);
+            BinaryCodec.write(s.getOutputStream(), lbFrame);
+        }
+        lbData = new DataInputStream(s.getInputStream());
+        ByteBuffer reply = BinaryCodec.readFrame(lbData, ByteBuffer.allocate(16));
+        return reply != null && reply.get() == BinaryCodec.OK;
+    }
+
+    // Answers the load balancer's PING heartbeats with PONG until the control connection closes, then moves to
+    // another balancer of the cluster if there is one
+    private void answerHeartbeats() {
+        while (true) {
+            try {
+                if (binaryProtocol) {
+                    ByteBuffer frame = ByteBuffer.allocate(16);
+                    while ((frame = BinaryCodec.readFrame(lbData, frame)) != null) {
+                        if (frame.get() == BinaryCodec.PING) {
+                            sendToLb(BinaryCodec.PONG, "PONG");
+                        }
+                    }
+                } else {
+                    String line;
+                    while ((line = lbReader.readLine()) != null) {
+                        if ("PING".equals(line)) {
+                            sendToLb(BinaryCodec.PONG, "PONG");
+                        }
+                    }
+                }
+            } catch (IOException ignored) {
+                // closed below or by stop()
+            }
+            if (!running) {
+                return;
+            }
+            Log.warn("Control connection to load balancer on port {} closed", lbPort);
+            if (lbPorts == null || !rejoin()) {
                 return;
             }
+        }
+    }
 
-            int choice;
+    // Registers with whichever balancer of the cluster accepts first, retrying until one does or the server stops.
+    // Slots the old balancer handed out are freed at the new one, which never lets a count drop below zero.
+    private boolean rejoin() {
+        try {
+            lbSocket.close();
+        } catch (IOException ignored) {
+        }
+        while (running) {
             try {
-                choice = Integer.parseInt(choiceStr);
-            } catch (NumberFormatException e) {
-                out.writeBytes("Invalid choice format\n");
-                out.flush();
-                System.out.println("Invalid choice format from client.");
+                if (joinAny()) {
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.debug("Rejoin failed: {}", e.getMessage());
+            }
+            try {
+                Thread.sleep(REJOIN_MILLIS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // Handles a single client request and notifies the load balancer when done. The connection holds one of the
+    // balancer's slots for this server, so FREE (or REJECTED) goes out on every path, malformed and failed requests
+    // included; only a multiplexed connection, whose requests notify one by one, and a detached session, which
+    // notifies when it finishes, skip it here.
+    private void handleClient(Socket clientSocket) {
+        boolean detached = false; // a timed session owns the connection now and closes it when it finishes
+        boolean multiplexed = false;
+        boolean accepted = true;
+        try {
+            BufferedInputStream raw = new BufferedInputStream(clientSocket.getInputStream());
+            DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream());
+            int choice;
+            String type;
+            raw.mark(1);
+            if (raw.read() == (BinaryCodec.MAGIC & 0xFF)) {
+                ByteBuffer frame = BinaryCodec.readFrame(new DataInputStream(raw), ByteBuffer.allocate(256));
+                if (frame == null || frame.get() != BinaryCodec.CALL) {
+                    out.writeBytes("Invalid request\n");
+                    out.flush();
+                    Log.debug("Received invalid binary request from client.");
+                    return;
+                }
+                BinaryCodec.getVarint(frame); // request id, unused on a one-request connection
+                choice = BinaryCodec.getInt(frame);
+                type = BinaryCodec.getString(frame);
+            } else {
+                raw.reset();
+                BufferedReader in = new BufferedReader(new InputStreamReader(raw));
+                String choiceStr = in.readLine();
+                if (MUX.equals(choiceStr)) {
+                    multiplexed = true;
+                    clientSocket.setTcpNoDelay(true);
+                    handleMultiplexed(clientSocket, in, new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream())));
+                    return;
+                }
+                type = in.readLine();
+
+                if (choiceStr == null || type == null) {
+                    out.writeBytes("Invalid request\n");
+                    out.flush();
+                    Log.debug("Received invalid request from client.");
+                    return;
+                }
+
+                try {
+                    choice = Integer.parseInt(choiceStr);
+                } catch (NumberFormatException e) {
+                    out.writeBytes("Invalid choice format\n");
+                    out.flush();
+                    Log.debug("Invalid choice format from client.");
+                    return;
+                }
+            }
+
+            if (choice == BINARY_FILE) {
+                long start = System.nanoTime();
+                requests.increment();
+                sendFile(type, clientSocket, out);
+                recordLatency(BINARY_FILE, (System.nanoTime() - start) / 1000);
+                Log.debug("Sent binary file {} to client {}", type, clientSocket.getRemoteSocketAddress());
                 return;
             }
 
-            String response = null;
+            SocketSink sink = new SocketSink(clientSocket, out, bytesSent);
+            if (timers != null && startSession(clientSocket, choice, type, sink)) {
+                detached = true;
+                return;
+            }
+            accepted = process(choice, type, sink);
 
-            switch (choice) {
-                case 1: // Directory listing
-                    File dir = new File(type);
-                    if (dir.isDirectory()) {
-                        StringBuilder sb = new StringBuilder();
-                        File[] files = dir.listFiles();
-                        if (files != null) {
-                            for (File f : files) {
-                                sb.append(f.getName()).append("\n");
-                            }
-                        }
-                        response = sb.toString();
-                    } else {
-                        response = "Invalid directory";
-                    }
-                    break;
+            Log.debug("Processed request (choice={}, type={}) for client {}", choice, type, clientSocket.getRemoteSocketAddress());
+        } catch (Exception e) {
+            Log.error("Request from " + clientSocket.getRemoteSocketAddress() + " failed", e);
+        } finally {
+            if (!detached) {
+                if (!multiplexed) {
+                    notifyDone(accepted);
+                }
+                closeClient(clientSocket);
+            }
+        }
+    }
 
-                case 2: // File transfer
-                    File file = new File(type);
-                    if (file.isFile()) {
-                        StringBuilder sb = new StringBuilder();
-                        try (BufferedReader r = new BufferedReader(new FileReader(file))) {
-                            String line;
-                            while ((line = r.readLine()) != null) {
-                                sb.append(line).append("\n");
-                            }
-                        } catch (IOException e) {
-                            response = "Error reading file: " + e.getMessage();
-                            break;
-                        }
-                        response = sb.toString();
-                    } else {
-                        response = "File not found";
+    private static void closeClient(Socket clientSocket) {
+        try {
+            clientSocket.close();
+            Log.debug("Closed connection with client.");
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Hands a sleep computation or a stream to the timer wheel, which wakes it only when it has work to do; returns
+    // false for requests that need a thread throughout (CPU-bound work) or are malformed
+    private boolean startSession(Socket clientSocket, int choice, String type, SocketSink sink) throws IOException {
+        TimedSession session;
+        VideoStream stream = null;
+        if (choice == 3) {
+            int seconds;
+            try {
+                seconds = Integer.parseInt(type.substring(type.indexOf(':') + 1).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (seconds < 0 || workloadOf(type) != ComputeEngine.Workload.SLEEP) {
+                return false; // process() answers the invalid ones
+            }
+            if (!compute.tryAdmit()) {
+                return false; // the compute queue bound covers sleeps too: process() answers REJECTED as for any computation
+            }
+            session = new DelayedReply(sink, seconds * 1_000_000_000L, "Computation done (sleep, result=" + seconds + ")");
+        } else if (choice == 4) {
+            try {
+                stream = VideoStream.parse(type);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            stream.open(sink.channel(), streamHeaders, streamStallMicros);
+            activeStreams.incrementAndGet();
+            session = stream;
+        } else {
+            return false;
+        }
+        VideoStream finishedStream = stream;
+        activeRequests.incrementAndGet();
+        requests.increment();
+        long start = System.nanoTime();
+        timers.run(session, failure -> {
+            try {
+                activeRequests.decrementAndGet();
+                recordLatency(choice, (System.nanoTime() - start) / 1000);
+                if (finishedStream != null) {
+                    activeStreams.decrementAndGet();
+                    try {
+                        finishedStream.close();
+                    } catch (IOException ignored) {
                     }
-                    break;
+                    recordStream(finishedStream);
+                }
+                if (failure != null) {
+                    Log.warn("Session for {} failed: {}", clientSocket.getRemoteSocketAddress(), failure.getMessage());
+                }
+                closeClient(clientSocket);
+            } finally {
+                if (choice == 3) {
+                    compute.finished();
+                }
+                notifyFree();
+            }
+        });
+        return true;
+    }
 
-                case 3: // Computation (simulated by sleeping)
+    // Serves "<id> <choice> <type>" requests on one connection until the client closes it.
+    // Requests run concurrently and every response line is tagged with its request id, so replies may interleave.
+    private void handleMultiplexed(Socket clientSocket, BufferedReader in, DataOutputStream out) throws IOException {
+        Log.debug("Client {} opened a multiplexed connection", clientSocket.getRemoteSocketAddress());
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] parts = line.split(" ", 3);
+            if (parts.length < 3) {
+                notifyFree(); // the client looked a server up for it all the same
+                continue;
+            }
+            String id = parts[0];
+            String type = parts[2];
+            ResponseSink sink = text -> {
+                synchronized (out) {
+                    for (String l : text.split("\n", -1)) {
+                        out.writeBytes(id + " D " + l + "\n");
+                        bytesSent.add(id.length() + l.length() + 4);
+                    }
+                    out.flush();
+                }
+            };
+            executor.execute(() -> {
+                boolean accepted = true;
+                try {
+                    int choice;
                     try {
-                        int t = Integer.parseInt(type);
-                        Thread.sleep(t * 1000L);
-                        response = "Computation done";
+                        choice = Integer.parseInt(parts[1]);
                     } catch (NumberFormatException e) {
-                        response = "Invalid computation time";
+                        choice = -1;
+                    }
+                    accepted = process(choice, type, sink);
+                    synchronized (out) {
+                        out.writeBytes(id + " E\n");
+                        out.flush();
                     }
+                } catch (Exception e) {
+                    Log.warn("Multiplexed request {} failed: {}", id, e.getMessage());
+                } finally {
+                    notifyDone(accepted); // the request held a slot whether or not its response got through
+                }
+            });
+        }
+    }
+
+    // Runs one request and writes its response lines to the sink; returns false if admission control rejected it
+    private boolean process(int choice, String type, ResponseSink sink) throws IOException, InterruptedException {
+        activeRequests.incrementAndGet();
+        requests.increment();
+        long start = System.nanoTime();
+        try {
+            boolean accepted = serve(choice, type, sink);
+            if (!accepted) {
+                rejectedRequests.increment();
+            }
+            return accepted;
+        } finally {
+            activeRequests.decrementAndGet();
+            recordLatency(choice, (System.nanoTime() - start) / 1000);
+        }
+    }
+
+    private boolean serve(int choice, String type, ResponseSink sink) throws IOException, InterruptedException {
+        String response = null;
+
+        switch (choice) {
+            case 1: // Directory listing: "path[?recursive&glob=..&cursor=..&limit=..&meta]", streamed, see DirectoryListing
+                DirectoryListing listing;
+                try {
+                    listing = DirectoryListing.parse(type);
+                } catch (InvalidPathException e) {
+                    response = "Invalid directory";
+                    break;
+                } catch (IllegalArgumentException e) {
+                    response = e.getMessage();
                     break;
+                }
+                if (Files.isDirectory(listing.dir)) {
+                    String key = ContentCache.listingKey(listing.dir);
+                    if (listing.plain() && serveCached(key, sink)) {
+                        break;
+                    }
+                    // cached only if the whole listing turns out to fit in an entry; larger ones are never buffered
+                    long generation = cache != null && listing.plain() ? cache.generation(listing.dir) : -1;
+                    byte[] listed = listing.write(sink, generation >= 0 ? cache.maxEntryBytes() : 0);
+                    listedEntries.add(listing.entries());
+                    if (listed != null) {
+                        cache.put(key, listing.dir, generation, listed);
+                    }
+                } else {
+                    response = "Invalid directory";
+                }
+                break;
 
-                case 4: // Video streaming (simulated by sending frames)
-                    try {
-                        int frames = Integer.parseInt(type);
-                        for (int i = 0; i < frames; i++) {
-                            out.writeBytes("Video frame " + i + "\n");
-                            out.flush();
-                            System.out.println("Sent video frame " + i + " to client " + clientSocket.getRemoteSocketAddress());
-                            Thread.sleep(1000);
+            case 2: // File transfer
+                File file = new File(type);
+                if (file.isFile()) {
+                    Path filePath = file.toPath().toAbsolutePath().normalize();
+                    String key = ContentCache.fileKey(2, filePath);
+                    if (serveCached(key, sink)) {
+                        break;
+                    }
+                    long generation = cache != null && cache.fits(file.length()) ? cache.generation(filePath.getParent()) : -1;
+                    StringBuilder sb = new StringBuilder();
+                    try (BufferedReader r = new BufferedReader(new FileReader(file))) {
+                        String line;
+                        while ((line = r.readLine()) != null) {
+                            sb.append(line).append("\n");
                         }
-                    } catch (NumberFormatException e) {
-                        out.writeBytes("Invalid frame count\n");
-                        out.flush();
+                    } catch (IOException e) {
+                        response = "Error reading file: " + e.getMessage();
+                        break;
                     }
-                    response = null; // Already sent frames
+                    response = sb.toString();
+                    if (generation >= 0) {
+                        cache.put(key, filePath.getParent(), generation, lineBytes(response));
+                    }
+                } else {
+                    response = "File not found";
+                }
+                break;
+
+            case 3: // Computation: "<size>" or "<workload>:<size>", run on the compute engine
+                try {
+                    ComputeEngine.Workload workload = workloadOf(type);
+                    int size = Integer.parseInt(type.substring(type.indexOf(':') + 1).trim());
+                    long result = compute.run(workload, size);
+                    response = "Computation done (" + workload.name().toLowerCase() + ", result=" + result + ")";
+                } catch (IllegalArgumentException e) { // not a number, or a size the engine refuses
+                    response = "Invalid computation time";
+                } catch (RejectedExecutionException e) {
+                    sink.line("REJECTED " + e.getMessage());
+                    return false;
+                }
+                break;
+
+            case 4: // Video streaming: "frames[:fps[:frameSize]]", paced and adapted to the client, see VideoStream
+                VideoStream stream;
+                try {
+                    stream = VideoStream.parse(type);
+                } catch (NumberFormatException e) {
+                    sink.line("Invalid frame count");
                     break;
+                }
+                activeStreams.incrementAndGet();
+                try {
+                    SocketChannel ch = sink.channel();
+                    if (ch != null) {
+                        stream.send(ch, streamHeaders, streamStallMicros);
+                    } else {
+                        stream.send(sink);
+                    }
+                } finally {
+                    activeStreams.decrementAndGet();
+                    recordStream(stream);
+                }
+                response = null; // Already sent frames
+                break;
+
+            case BINARY_FILE: // Needs the raw socket, see sendFile
+                response = "Binary file transfer needs its own connection";
+                break;
+
+            default:
+                response = "Invalid choice";
+        }
+
+        if (response != null) {
+            sink.line(response);
+        }
+        return true;
+    }
+
+    // Streams a file as "OK <length>" followed by its raw bytes, or answers "ERR <reason>".
+    // The bytes go from the page cache to the socket with FileChannel.transferTo, so memory use is constant and binary content is intact.
+    private void sendFile(String path, Socket socket, DataOutputStream out) throws IOException {
+        File file = new File(path);
+        if (!file.isFile()) {
+            out.writeBytes("ERR File not found\n");
+            out.flush();
+            return;
+        }
+        Path filePath = file.toPath().toAbsolutePath().normalize();
+        String key = ContentCache.fileKey(BINARY_FILE, filePath);
+        if (cache != null && cache.fits(file.length())) {
+            ByteBuffer cached = cache.get(key);
+            if (cached == null) {
+                // Small file: read it once into an off-heap entry (header included) and serve that from now on
+                long generation = cache.generation(filePath.getParent());
+                byte[] body = Files.readAllBytes(filePath);
+                byte[] header = ("OK " + body.length + "\n").getBytes(StandardCharsets.US_ASCII);
+                byte[] data = Arrays.copyOf(header, header.length + body.length);
+                System.arraycopy(body, 0, data, header.length, body.length);
+                cache.put(key, filePath.getParent(), generation, data);
+                cached = ByteBuffer.wrap(data);
+            }
+            new SocketSink(socket, out, bytesSent).bytes(cached);
+            return;
+        }
+        try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long size = fc.size();
+            out.write(("OK " + size + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+            long pos = 0;
+            while (pos < size) {
+                long n = fc.transferTo(pos, size - pos, target);
+                if (n <= 0) {
+                    throw new IOException("File shrank during transfer: " + path);
+                }
+                pos += n;
+                bytesSent.add(n);
+            }
+        }
+    }
+
+    // Writes a cached response if there is one
+    private boolean serveCached(String key, ResponseSink sink) throws IOException {
+        ByteBuffer cached = cache != null ? cache.get(key) : null;
+        if (cached == null) {
+            return false;
+        }
+        sink.bytes(cached);
+        return true;
+    }
+
+    // Serializes a response exactly as DataOutputStream.writeBytes(response + "\n") would send it
+    static byte[] lineBytes(String response) {
+        byte[] b = new byte[response.length() + 1];
+        for (int i = 0; i < response.length(); i++) {
+            b[i] = (byte) response.charAt(i);
+        }
+        b[response.length()] = '\n';
+        return b;
+    }
+
+    // Returns the content cache counters, or null when caching is disabled
+    public String cacheStats() {
+        return cache != null ? cache.stats() : null;
+    }
+
+    // Folds a finished stream's frame, byte and adaptation counts into the server's metrics
+    private void recordStream(VideoStream stream) {
+        streamFrames.add(stream.framesSent);
+        streamDowngrades.add(stream.downgrades);
+        bytesSent.add(stream.bytesSent);
+        Log.debug("Stream finished: {} frame(s), {} stall(s), frame size {}", stream.framesSent, stream.stalls,
+                stream.currentSize + "/" + stream.frameSize);
+    }
+
+    // Records one service time in its choice's histogram and folds it into the moving average reported to the load balancer
+    private void recordLatency(int choice, long micros) {
+        serviceMicros[choice > 0 && choice < serviceMicros.length ? choice : 0].record(micros);
+        latencyEwmaMicros.updateAndGet(old -> old == 0 ? micros : (long) (EWMA_ALPHA * micros + (1 - EWMA_ALPHA) * old));
+    }
+
+    // Pushes "LOAD <active> <queued> <cpuPercent> <latencyEwmaMicros>" over the control connection
+    private void reportLoad() {
+        int cpu = 0;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            double load = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad();
+            cpu = load < 0 ? 0 : (int) Math.round(load * 100);
+        } else if (os.getSystemLoadAverage() >= 0) {
+            cpu = (int) Math.min(100, Math.round(100 * os.getSystemLoadAverage() / os.getAvailableProcessors()));
+        }
+        try {
+            sendLoad(activeRequests.get(), compute.queued(), cpu, latencyEwmaMicros.get());
+        } catch (IOException e) {
+            Log.warn("Failed to send load report: {}", e.getMessage());
+        }
+    }
+
+    // Tells the load balancer a request finished (FREE) or was turned away by admission control (REJECTED)
+    private void notifyDone(boolean accepted) {
+        if (accepted) {
+            notifyFree();
+            return;
+        }
+        try {
+            sendToLb(BinaryCodec.REJECTED, "REJECTED");
+            Log.debug("Notified load balancer that a request was rejected.");
+        } catch (IOException e) {
+            Log.warn("Failed to notify load balancer: {}", e.getMessage());
+        }
+    }
+
+    // Notifies the load balancer that this server finished a request
+    private void notifyFree() {
+        try {
+            sendToLb(BinaryCodec.FREE, "FREE");
+            Log.debug("Notified load balancer that server is free.");
+        } catch (IOException e) {
+            Log.warn("Failed to notify load balancer: {}", e.getMessage());
+        }
+    }
 
-                default:
-                    response = "Invalid choice";
+    // Sends one field-less control message to the load balancer; synchronized so concurrent handlers never interleave bytes
+    private synchronized void sendToLb(byte opcode, String text) throws IOException {
+        if (!binaryProtocol) {
+            OutputStream out = lbSocket.getOutputStream();
+            out.write((text + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            return;
+        }
+        BinaryCodec.end(lbFrame, BinaryCodec.begin(lbFrame, opcode, 0));
+        BinaryCodec.write(lbSocket.getOutputStream(), lbFrame);
+    }
+
+    // Sends a LOAD report: four varints in a frame, or the text line
+    private synchronized void sendLoad(int active, int queued, int cpu, long latencyMicros) throws IOException {
+        if (!binaryProtocol) {
+            sendToLb(BinaryCodec.LOAD, "LOAD " + active + " " + queued + " " + cpu + " " + latencyMicros);
+            return;
+        }
+        int start = BinaryCodec.begin(lbFrame, BinaryCodec.LOAD, 0);
+        BinaryCodec.putVarint(lbFrame, active);
+        BinaryCodec.putVarint(lbFrame, queued);
+        BinaryCodec.putVarint(lbFrame, cpu);
+        BinaryCodec.putVarint(lbFrame, latencyMicros);
+        BinaryCodec.end(lbFrame, start);
+        BinaryCodec.write(lbSocket.getOutputStream(), lbFrame);
+    }
+
+    // Says GOODBYE to the load balancer and stops accepting clients
+    public void stop() {
+        running = false;
+        try {
+            if (lbSocket != null) {
+                sendToLb(BinaryCodec.GOODBYE, "GOODBYE");
+            }
+        } catch (IOException ignored) {
+        }
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
             }
+        } catch (IOException ignored) {
+        }
+        if (cache != null) {
+            cache.close(); // also done once the accept loop ends; closing twice is harmless
+        }
+    }
+
+    // Where a request's response lines go: straight to the socket, or tagged with a request id on a multiplexed connection
+    interface ResponseSink {
+
+        void line(String text) throws IOException;
 
-            if (response != null) {
-                out.writeBytes(response + "\n");
-                out.flush();
+        // The connection's channel for writers that need it directly, such as VideoStream; null when there is none
+        default SocketChannel channel() throws IOException {
+            return null;
+        }
+
+        // Writes an already serialized response (see lineBytes); by default it is decoded back into a line
+        default void bytes(ByteBuffer data) throws IOException {
+            byte[] b = new byte[data.remaining()];
+            data.get(b);
+            int len = b.length > 0 && b[b.length - 1] == '\n' ? b.length - 1 : b.length;
+            line(new String(b, 0, len, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    // Workload named before the colon of a computation request, or the server's default
+    private ComputeEngine.Workload workloadOf(String type) {
+        int colon = type.indexOf(':');
+        return colon < 0 ? computeWorkload : ComputeEngine.Workload.parse(type.substring(0, colon), computeWorkload);
+    }
+
+    // A computation that only waits: woken once after the delay to send its reply
+    private static class DelayedReply implements TimedSession {
+
+        private final ResponseSink sink;
+        private final long delayNanos;
+        private final String reply;
+        private boolean waited;
+
+        DelayedReply(ResponseSink sink, long delayNanos, String reply) {
+            this.sink = sink;
+            this.delayNanos = delayNanos;
+            this.reply = reply;
+        }
+
+        @Override
+        public long step() throws IOException {
+            if (!waited) {
+                waited = true;
+                return delayNanos;
             }
+            sink.line(reply);
+            return -1;
+        }
+    }
 
-            System.out.println("Processed request (choice=" + choiceStr + ", type=" + type + ") for client " + clientSocket.getRemoteSocketAddress());
+    // Sink for a plain one-request connection; serialized responses go to the socket channel without copying
+    static class SocketSink implements ResponseSink {
 
-            // Notify load balancer this server is free
-            try {
-                DataOutputStream outToLb = new DataOutputStream(lbSocket.getOutputStream());
-                outToLb.writeBytes("FREE\n");
-                outToLb.flush();
-                System.out.println("Notified load balancer that server is free.");
-            } catch (IOException e) {
-                System.out.println("Failed to notify load balancer: " + e.getMessage());
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final LongAdder bytesSent;
+
+        SocketSink(Socket socket, DataOutputStream out, LongAdder bytesSent) {
+            this.socket = socket;
+            this.out = out;
+            this.bytesSent = bytesSent;
+        }
+
+        @Override
+        public void line(String text) throws IOException {
+            out.writeBytes(text + "\n");
+            out.flush();
+            bytesSent.add(text.length() + 1);
+        }
+
+        @Override
+        public SocketChannel channel() throws IOException {
+            out.flush();
+            return socket.getChannel();
+        }
+
+        @Override
+        public void bytes(ByteBuffer data) throws IOException {
+            out.flush();
+            SocketChannel ch = socket.getChannel();
+            if (ch == null) {
+                ResponseSink.super.bytes(data);
+                return;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                clientSocket.close();
-                System.out.println("Closed connection with client.");
-            } catch (IOException ignored) {
+            bytesSent.add(data.remaining());
+            while (data.hasRemaining()) {
+                ch.write(data);
             }
         }
     }
@@ -200,17 +943,47 @@ public class Server {
         }
     }
 
-    // Entry point for starting servers interactively or via command-line arguments
+    // Entry point for starting servers interactively or via command-line arguments:
+    // [port strategy [mode [poolSize [capacity]]]] [stats <port>] [lb <port>,<port>...] [text]
     public static void main(String[] args) throws IOException {
         Scanner scn = new Scanner(System.in);
         System.out.println("Enter the number of servers you want to start (1 or 2): ");
         int serverNum = scn.nextInt();
         startTwoServers(serverNum);
 
+        boolean text = args.length > 0 && "text".equalsIgnoreCase(args[args.length - 1]); // text protocol, for debugging
+        if (text) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        int[] balancers = null;
+        int n = args.length;
+        if (n >= 2 && "lb".equalsIgnoreCase(args[n - 2])) {
+            balancers = Arrays.stream(args[n - 1].split(",")).mapToInt(Integer::parseInt).toArray();
+            args = Arrays.copyOf(args, n - 2);
+        }
+        int statsPort = 0;
+        n = args.length;
+        if (n >= 2 && "stats".equalsIgnoreCase(args[n - 2])) {
+            statsPort = Integer.parseInt(args[n - 1]);
+            args = Arrays.copyOf(args, n - 2);
+        }
         if (args.length >= 2) {
             int port = Integer.parseInt(args[0]);
             String strategy = args[1];
-            new Server(port, strategy, LB_PORT).start();
+            Server server = new Server(port, strategy, LB_PORT);
+            if (args.length >= 3) {
+                int size = args.length >= 4 ? Integer.parseInt(args[3]) : ExecutionMode.DEFAULT_POOL_SIZE;
+                server.setExecutionMode(ExecutionMode.parse(args[2]), size);
+            }
+            if (args.length >= 5) {
+                server.setCapacity(Integer.parseInt(args[4]));
+            }
+            server.setStatsPort(statsPort);
+            if (balancers != null) {
+                server.setLoadBalancers(balancers);
+            }
+            server.setBinaryProtocol(!text);
+            server.start();
         }
     }
 }
@@ -0,0 +1,67 @@
+package networkProject.newPackage2;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Holds metadata and live state for each registered server; state fields are safe to touch without locks
+class ServerInfo {
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    final long id = ids.incrementAndGet();
+    final int port;
+    final Strategy strategy;
+    final Socket socket;
+    final int capacity; // concurrent requests the server advertised in its JOIN
+    final AtomicInteger inUse = new AtomicInteger(); // slots currently handed out to clients
+    final AtomicLong rejections = new AtomicLong(); // requests turned away by the server's admission control
+    volatile long lastFreeTime;
+    volatile boolean removed;
+    // Latest LOAD report from the server
+    volatile int reportedActive;
+    volatile int reportedQueue;
+    volatile int cpuLoad; // percent
+    volatile long latencyEwmaMicros;
+    volatile long lastReportTime;
+    LeastConnectionsPool.Key key; // guarded by this; entry in the least-connections index
+    // Health: the breaker takes the server out of rotation while it looks dead, the detector judges its heartbeats
+    final CircuitBreaker breaker;
+    final PhiAccrualDetector heartbeats;
+    volatile Runnable pinger; // sends PING over the control connection; null when the server is not health-checked
+    volatile int owner; // cluster port of the peer balancer that registered the server; 0 for our own servers
+
+    ServerInfo(int p, Strategy s, Socket sk, int cap, CircuitBreaker b, PhiAccrualDetector hb) {
+        port = p;
+        strategy = s;
+        socket = sk;
+        capacity = Math.max(1, cap);
+        breaker = b;
+        heartbeats = hb;
+        lastFreeTime = System.currentTimeMillis();
+    }
+
+    // Claims one of the server's slots if it is still registered, its breaker is closed and it is not at capacity
+    boolean tryAcquire() {
+        while (!removed && breaker.allowsTraffic()) {
+            int used = inUse.get();
+            if (used >= capacity) {
+                return false;
+            }
+            if (inUse.compareAndSet(used, used + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Gives one slot back after the server reports FREE
+    void release() {
+        lastFreeTime = System.currentTimeMillis();
+        inUse.updateAndGet(u -> Math.max(0, u - 1));
+    }
+
+    boolean hasFreeSlot() {
+        return !removed && breaker.allowsTraffic() && inUse.get() < capacity;
+    }
+}
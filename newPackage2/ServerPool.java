@@ -0,0 +1,28 @@
+package networkProject.newPackage2;
+
+// The servers of one strategy and the policy used to pick among them
+interface ServerPool {
+
+    long NO_KEY = -1; // routing keys are ring positions, which are never negative
+
+    void add(ServerInfo s);
+
+    void remove(ServerInfo s);
+
+    // Claims a slot on an available server and returns it, or null if every server is at capacity
+    ServerInfo select();
+
+    // Like select, for a request that carries a routing key; only key-affine pools look at it
+    default ServerInfo select(long key) {
+        return select();
+    }
+
+    // Returns one of the server's slots to the pool after it reports FREE
+    void release(ServerInfo s);
+
+    // Re-evaluates a server whose availability changed outside select and release, such as a circuit breaker flip
+    default void refresh(ServerInfo s) {
+    }
+
+    int size();
+}
@@ -0,0 +1,63 @@
+package networkProject.newPackage2;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Local stats port: answers "GET /" with an HTTP/1.0 text/plain page (curl, a browser) and any other first line,
+// e.g. "STATS", with the bare text, so it also works with nc. Each page is the render() of the given components.
+class StatsEndpoint extends Thread {
+
+    private final ServerSocket socket;
+    private final Metrics[] sources;
+
+    StatsEndpoint(int port, Metrics... sources) throws IOException {
+        super("stats-" + port);
+        this.socket = new ServerSocket(port);
+        this.sources = sources;
+        setDaemon(true);
+    }
+
+    void shutdown() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        Log.info("Stats endpoint listening on port {}", socket.getLocalPort());
+        while (!socket.isClosed()) {
+            try (Socket s = socket.accept()) {
+                s.setSoTimeout(2000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+                String first = in.readLine();
+                boolean http = first != null && first.startsWith("GET ");
+                if (http) {
+                    String header;
+                    while ((header = in.readLine()) != null && !header.isEmpty()) {
+                        // skip request headers
+                    }
+                }
+                StringBuilder body = new StringBuilder();
+                for (Metrics m : sources) {
+                    body.append(m.render());
+                }
+                byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+                OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                if (http) {
+                    out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; charset=utf-8\r\nContent-Length: "
+                            + bytes.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.write(bytes);
+                out.flush();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    Log.warn("Stats request failed: {}", e.getMessage());
+                }
+            }
+        }
+    }
+}
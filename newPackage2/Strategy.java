@@ -0,0 +1,46 @@
+package networkProject.newPackage2;
+
+// Server pools the load balancer routes to; each registered server belongs to exactly one
+public enum Strategy {
+
+    STATIC, // file transfer and directory listing (round-robin)
+    DYNAMIC; // computation and streaming (least-connections)
+
+    private static final Strategy[] VALUES = values();
+
+    // Parses the strategy named in a JOIN message
+    static Strategy parse(String s) {
+        if ("static".equalsIgnoreCase(s)) {
+            return STATIC;
+        }
+        if ("dynamic".equalsIgnoreCase(s)) {
+            return DYNAMIC;
+        }
+        throw new IllegalArgumentException("Unknown strategy: " + s);
+    }
+
+    // Strategy carried as a byte in binary frames (its ordinal)
+    static Strategy of(int code) {
+        if (code < 0 || code >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown strategy code: " + code);
+        }
+        return VALUES[code];
+    }
+
+    // Maps a client request type to the strategy that handles it
+    static Strategy forRequestType(String requestType) {
+        switch (requestType) {
+            case "stream":
+            case "compute":
+            case "computation":
+                return DYNAMIC;
+            default:
+                return STATIC;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,11 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+
+// A time-driven request run as a state machine on a TimerWheel: each call does the work that is due without blocking
+// and says when to be woken next, so the session holds no thread between steps
+interface TimedSession {
+
+    // Returns nanoseconds until the next step, or a negative value once the session is finished
+    long step() throws IOException;
+}
@@ -0,0 +1,150 @@
+package networkProject.newPackage2;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+// Hashed timer wheel: one ticker thread walks a ring of buckets, one bucket per tick, and hands expired tasks to a
+// few worker threads. Scheduling is O(1) and a pending wake-up is one small object, so thousands of time-driven
+// sessions (sleeping computations, paced streams) share a handful of threads instead of each pinning one.
+class TimerWheel {
+
+    private static final long TICK_NANOS = 1_000_000;
+    private static final int WHEEL_SIZE = 1024; // one revolution is about a second; longer delays count rounds
+
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE]; // ticker thread only
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ExecutorService workers;
+    private final Thread ticker;
+    private final long startTime = System.nanoTime();
+    private long tick; // ticker thread only
+    private volatile boolean running = true;
+
+    TimerWheel(String name, int threads) {
+        AtomicInteger ids = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-session-" + ids.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ticker = new Thread(this::loop, name + "-timer");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    // Runs task on a worker once delayNanos have passed, rounded up to the next tick; no delay runs it right away
+    void schedule(Runnable task, long delayNanos) {
+        if (delayNanos <= 0) {
+            execute(task);
+            return;
+        }
+        incoming.add(new Timeout(task, System.nanoTime() + delayNanos));
+        if (pending.incrementAndGet() == 1) {
+            LockSupport.unpark(ticker); // the ticker parks indefinitely while nothing is scheduled
+        }
+    }
+
+    // Drives a session: each step runs on a worker when it is due, until the session finishes or throws;
+    // onDone then gets null or the failure
+    void run(TimedSession session, Consumer<Exception> onDone) {
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                long delay;
+                try {
+                    delay = session.step();
+                } catch (Exception e) {
+                    onDone.accept(e);
+                    return;
+                }
+                if (delay < 0) {
+                    onDone.accept(null);
+                } else {
+                    schedule(this, delay);
+                }
+            }
+        }, 0);
+    }
+
+    // Wake-ups scheduled and not yet due
+    int pending() {
+        return pending.get();
+    }
+
+    void shutdown() {
+        running = false;
+        LockSupport.unpark(ticker);
+        workers.shutdownNow();
+    }
+
+    private void execute(Runnable task) {
+        try {
+            workers.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shut down: the session's connection is being closed anyway
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            if (pending.get() == 0) {
+                LockSupport.park(this);
+                tick = Math.max(tick, (System.nanoTime() - startTime) / TICK_NANOS); // the buckets are empty, skip idle ticks
+                continue;
+            }
+            long wait = startTime + (tick + 1) * TICK_NANOS - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            Timeout t;
+            while ((t = incoming.poll()) != null) {
+                long due = Math.max((t.deadline - startTime) / TICK_NANOS, tick); // already late: fire this tick
+                t.rounds = (due - tick) / WHEEL_SIZE;
+                int i = (int) (due & (WHEEL_SIZE - 1));
+                t.next = buckets[i];
+                buckets[i] = t;
+            }
+            expire((int) (tick & (WHEEL_SIZE - 1)));
+            tick++;
+        }
+    }
+
+    // Fires the bucket's timeouts that are due this revolution and counts down the others
+    private void expire(int i) {
+        Timeout prev = null;
+        for (Timeout t = buckets[i]; t != null; t = t.next) {
+            if (t.rounds > 0) {
+                t.rounds--;
+                prev = t;
+                continue;
+            }
+            if (prev == null) {
+                buckets[i] = t.next;
+            } else {
+                prev.next = t.next;
+            }
+            pending.decrementAndGet();
+            execute(t.task);
+        }
+    }
+
+    private static class Timeout {
+
+        final Runnable task;
+        final long deadline;
+        long rounds;
+        Timeout next;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package networkProject.newPackage2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+// One choice-4 stream: "frames[:fps[:frameSize]]" frames sent on a fixed schedule as "Video frame <i> <payload>" lines.
+// Payloads are slices of one pre-generated read-only buffer and headers come from a shared pool, so a frame costs no
+// allocation. Frames that fall due together (the client lagged) are coalesced into one gathering write. When the
+// socket send buffer fills up the stream halves its frame size, and it grows back once writes keep up again.
+// The stream is a TimedSession, so a TimerWheel can drive it between frames without a thread of its own.
+final class VideoStream implements TimedSession {
+
+    static final int MAX_FPS = 1000;
+    static final int MAX_FRAME_SIZE = 64 * 1024;
+    static final int HEADER_SIZE = 32; // "Video frame " plus up to ten digits and a space
+    private static final int MAX_BATCH = 32; // frames per gathering write
+    private static final int MIN_FRAME_SIZE = 64; // adaptation never shrinks frames below this
+    private static final long POLL_NANOS = 1_000_000; // retry interval while the send buffer is full
+    private static final byte[] PREFIX = "Video frame ".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer PAYLOAD = payload();
+
+    final int frames;
+    final int fps;
+    final int frameSize; // requested payload bytes per frame; 0 sends bare "Video frame <i>" lines
+    int currentSize; // payload size after adaptation
+    long framesSent;
+    long bytesSent;
+    int stalls;
+    int downgrades;
+
+    private SocketChannel channel;
+    private BufferPool headerPool;
+    private LatencyHistogram stallMicros;
+    private ByteBuffer[] gather;
+    private boolean wasBlocking;
+    private long period;
+    private long start;
+    private int next; // first frame not yet written
+    private int batch; // frames in the batch being written
+    private int calm; // frames written since the last stall
+    private long stallStart; // when the batch in flight first hit a full send buffer, 0 if it has not
+
+    VideoStream(int frames, int fps, int frameSize) {
+        this.frames = frames;
+        this.fps = Math.max(1, Math.min(fps, MAX_FPS));
+        this.frameSize = Math.max(0, Math.min(frameSize, MAX_FRAME_SIZE));
+        this.currentSize = this.frameSize;
+    }
+
+    // Parses "frames[:fps[:frameSize]]"; a bare frame count streams one empty frame per second, as before
+    static VideoStream parse(String type) {
+        String[] parts = type.trim().split(":");
+        int fps = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+        int size = parts.length > 2 ? Integer.parseInt(parts[2].trim()) : 0;
+        return new VideoStream(Integer.parseInt(parts[0].trim()), fps, size);
+    }
+
+    // Takes header buffers from the pool and puts the channel in non-blocking mode, where a short write is how a full
+    // send buffer shows up; step() then does the sending and close() undoes both
+    void open(SocketChannel ch, BufferPool headerPool, LatencyHistogram stallMicros) throws IOException {
+        this.channel = ch;
+        this.headerPool = headerPool;
+        this.stallMicros = stallMicros;
+        gather = new ByteBuffer[2 * MAX_BATCH]; // header, payload, header, payload, ...
+        for (int k = 0; k < MAX_BATCH; k++) {
+            gather[2 * k] = headerPool.acquire();
+            gather[2 * k + 1] = PAYLOAD.duplicate();
+        }
+        wasBlocking = ch.isBlocking();
+        ch.configureBlocking(false);
+        period = 1_000_000_000L / fps;
+        start = System.nanoTime();
+    }
+
+    // Finishes the batch in flight, then sends every frame that is due; returns nanoseconds until the next frame is due,
+    // a short poll interval while the send buffer is full, or -1 after the last frame
+    @Override
+    public long step() throws IOException {
+        while (true) {
+            if (batch > 0) {
+                if (!writeBatch()) {
+                    return POLL_NANOS;
+                }
+                batchDone();
+            }
+            if (next >= frames) {
+                return -1;
+            }
+            long lag = System.nanoTime() - (start + next * period);
+            if (lag < 0) {
+                return -lag;
+            }
+            batch = (int) Math.min(Math.min(MAX_BATCH, frames - next), 1 + lag / period); // frames already due go out together
+            for (int k = 0; k < batch; k++) {
+                frame(gather[2 * k], gather[2 * k + 1], next + k);
+            }
+        }
+    }
+
+    // Restores the channel's blocking mode and returns the header buffers; safe to call more than once
+    void close() throws IOException {
+        if (gather == null) {
+            return;
+        }
+        for (int k = 0; k < MAX_BATCH; k++) {
+            headerPool.release(gather[2 * k]);
+        }
+        gather = null;
+        if (channel.isOpen()) {
+            channel.configureBlocking(wasBlocking);
+        }
+    }
+
+    // Streams every frame on the calling thread, parking between steps
+    void send(SocketChannel ch, BufferPool headerPool, LatencyHistogram stallMicros) throws IOException, InterruptedException {
+        open(ch, headerPool, stallMicros);
+        try {
+            long delay;
+            while ((delay = step()) >= 0) {
+                LockSupport.parkNanos(delay);
+                checkInterrupted();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Streams to a sink without a channel (a multiplexed connection): one line per frame on the same schedule
+    void send(Server.ResponseSink sink) throws IOException, InterruptedException {
+        ByteBuffer p = PAYLOAD.duplicate();
+        p.limit(frameSize);
+        byte[] b = new byte[frameSize];
+        p.get(b);
+        String payload = frameSize > 0 ? " " + new String(b, StandardCharsets.US_ASCII) : "";
+        long period = 1_000_000_000L / fps;
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            long wait = start + i * period - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                checkInterrupted();
+            }
+            sink.line("Video frame " + i + payload);
+            framesSent++;
+            bytesSent += PREFIX.length + payload.length() + 2;
+        }
+    }
+
+    // Fills in the header and payload slice of frame i at the current size
+    private void frame(ByteBuffer header, ByteBuffer payload, int i) {
+        header.clear();
+        header.put(PREFIX);
+        putDecimal(header, i);
+        if (currentSize > 0) {
+            header.put((byte) ' ');
+        }
+        header.flip();
+        payload.limit(PAYLOAD.capacity()).position(PAYLOAD.capacity() - currentSize - 1); // payload bytes and the newline
+    }
+
+    // Writes as much of the batch as the socket takes; true once all of it is out
+    private boolean writeBatch() throws IOException {
+        int count = 2 * batch;
+        long n = channel.write(gather, 0, count);
+        bytesSent += n;
+        if (!gather[count - 1].hasRemaining()) {
+            return true;
+        }
+        if (stallStart == 0) {
+            stallStart = System.nanoTime();
+            stalls++;
+        }
+        return false;
+    }
+
+    // Accounts for a fully written batch and adapts the frame size to how long the send buffer stayed full
+    private void batchDone() {
+        int sent = batch;
+        next += sent;
+        framesSent += sent;
+        batch = 0;
+        long stalledNanos = 0;
+        if (stallStart != 0) {
+            stalledNanos = System.nanoTime() - stallStart;
+            stallMicros.recordMicrosSince(stallStart);
+            stallStart = 0;
+        }
+        if (stalledNanos > period) { // the client fell a frame behind, not just a momentarily full buffer
+            calm = 0;
+            if (currentSize > MIN_FRAME_SIZE) {
+                currentSize = Math.max(MIN_FRAME_SIZE, currentSize / 2);
+                downgrades++;
+            }
+        } else if (currentSize < frameSize && (calm += sent) >= fps) {
+            calm = 0; // a second without stalls: step back up towards the requested size
+            currentSize = Math.min(frameSize, currentSize + Math.max(MIN_FRAME_SIZE, frameSize / 8));
+        }
+    }
+
+    private static void putDecimal(ByteBuffer b, int v) {
+        if (v >= 10) {
+            putDecimal(b, v / 10);
+        }
+        b.put((byte) ('0' + v % 10));
+    }
+
+    private static void checkInterrupted() throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    // Printable filler ending in the frame's newline; every payload is a suffix of it
+    private static ByteBuffer payload() {
+        ByteBuffer b = ByteBuffer.allocateDirect(MAX_FRAME_SIZE + 1);
+        for (int i = 0; i < MAX_FRAME_SIZE; i++) {
+            b.put((byte) ('a' + i % 26));
+        }
+        b.put((byte) '\n');
+        return b.flip().asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,93 @@
+package networkProject.newPackage2;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Bounded FIFO of client requests waiting for a server of one strategy. A freed server is handed
+// straight to the oldest waiter; waiters that time out complete with null and the client gets NO_SERVER.
+class WaitQueue {
+
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger length = new AtomicInteger();
+    private final int capacity;
+    private final long timeoutMillis;
+    private final LongAdder served = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder totalWaitMicros = new LongAdder();
+    private final AtomicLong maxWaitMicros = new AtomicLong();
+    private final LatencyHistogram waits;
+
+    WaitQueue(int capacity, long timeoutMillis, LatencyHistogram waits) {
+        this.capacity = capacity;
+        this.timeoutMillis = timeoutMillis;
+        this.waits = waits;
+    }
+
+    boolean hasWaiters() {
+        return length.get() > 0;
+    }
+
+    int length() {
+        return length.get();
+    }
+
+    long timeoutMillis() {
+        return timeoutMillis;
+    }
+
+    // Adds a waiter, or returns an already-completed null future if the queue is full or disabled
+    CompletableFuture<ServerInfo> enqueue() {
+        if (capacity <= 0 || length.incrementAndGet() > capacity) {
+            if (capacity > 0) {
+                length.decrementAndGet();
+            }
+            overflows.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        Waiter w = new Waiter();
+        waiters.add(w);
+        w.future.completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS);
+        w.future.thenAccept(s -> {
+            if (s == null && waiters.remove(w)) {
+                length.decrementAndGet();
+                timeouts.increment();
+            }
+        });
+        return w.future;
+    }
+
+    // Gives the server to the oldest waiter still waiting; false if there is none
+    boolean handOff(ServerInfo s) {
+        Waiter w;
+        while ((w = waiters.poll()) != null) {
+            length.decrementAndGet();
+            if (w.future.complete(s)) {
+                long waited = (System.nanoTime() - w.enqueuedNanos) / 1000;
+                served.increment();
+                totalWaitMicros.add(waited);
+                maxWaitMicros.accumulateAndGet(waited, Math::max);
+                waits.record(waited);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    String stats() {
+        long n = served.sum();
+        return "queued=" + length.get() + "/" + capacity + " served=" + n + " timeouts=" + timeouts.sum()
+                + " overflows=" + overflows.sum() + " avgWaitMs=" + (n == 0 ? 0 : totalWaitMicros.sum() / n / 1000)
+                + " maxWaitMs=" + maxWaitMicros.get() / 1000;
+    }
+
+    private static class Waiter {
+
+        final long enqueuedNanos = System.nanoTime();
+        final CompletableFuture<ServerInfo> future = new CompletableFuture<>();
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Runs a three-balancer cluster on this host: balancers on 6789-6791 gossip on 7789-7791, four servers register
+# with whichever balancer their port picks (and move to another if it dies), and the load generator spreads its
+# clients over all three balancers. Usage: ./run-cluster.sh [LoadGenerator options, e.g. rate=200 duration=20]
+set -e
+cd "$(dirname "$0")"
+javac -d out newPackage2/*.java
+CP=out
+PKG=networkProject.newPackage2
+PIDS=""
+trap 'kill $PIDS 2>/dev/null' EXIT INT TERM
+
+for i in 0 1 2; do
+    java -cp $CP $PKG.LoadBalancer port $((6789 + i)) cluster $((7789 + i)) 7789,7790,7791 &
+    PIDS="$PIDS $!"
+done
+sleep 1
+for port in 7000 7001 7002 7003; do
+    strategy=static
+    [ $((port % 2)) -eq 1 ] && strategy=dynamic
+    echo 0 | java -cp $CP $PKG.Server $port $strategy lb 6789,6790,6791 &
+    PIDS="$PIDS $!"
+done
+sleep 2
+
+java -cp $CP $PKG.LoadGenerator lb=6789,6790,6791 "$@"